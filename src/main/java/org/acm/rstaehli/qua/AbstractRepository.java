@@ -4,9 +4,42 @@ import org.acm.rstaehli.qua.exceptions.NoImplementationFound;
 
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public abstract class AbstractRepository implements Repository {
 
+    private PlanCache planCache;  // null unless plans are cached
+    private Ranking ranking = new QualityRanking();  // orders matches for goals with a quality
+
+    /**
+     * remember bestMatch results so repeated goals skip matching.
+     * @param planCache cache to use, or null to match every time.
+     * @return this repository
+     */
+    public AbstractRepository setPlanCache(PlanCache planCache) {
+        this.planCache = planCache;
+        return this;
+    }
+
+    public PlanCache planCache() {
+        return planCache;
+    }
+
+    public AbstractRepository setRanking(Ranking ranking) {
+        this.ranking = ranking;
+        return this;
+    }
+
+    /**
+     * subclasses call this whenever an implementation of type is advertised.
+     */
+    protected void invalidatePlans(String type) {
+        PlanCache cache = planCache;
+        if (cache != null && type != null) {
+            cache.invalidate(type);
+        }
+    }
+
     Description firstOf(List<Description> list) throws NoImplementationFound {
         if (list == null || list.size() < 1) {
             return null;
@@ -19,25 +52,80 @@ public abstract class AbstractRepository implements Repository {
         if (desc.isActive()) {
             return Arrays.asList(desc);    // why would you even call if you already have the implementation?
         }
-        List<Description> matches = new ArrayList<>();
-        if (desc.isTyped()) {
-            addAllMatches(matches, implementationsByType(desc.type()), desc);
+        return implementationsMatching(CompiledGoal.of(desc));
+    }
+
+    @Override
+    public List<Description> implementationsMatching(CompiledGoal goal) {
+        return matching(goal).collect(Collectors.toList());
+    }
+
+    /**
+     * @param limit most matches wanted
+     * @return the first matches in advertised order; candidates after the last are not specialized
+     */
+    public List<Description> implementationsMatching(Description desc, int limit) {
+        return matching(desc).limit(limit).collect(Collectors.toList());
+    }
+
+    /**
+     * Matches in advertised order, each candidate specialized only when the
+     * stream reaches it, so findFirst or an iterator stops early.
+     */
+    public Stream<Description> matching(Description desc) {
+        if (desc.isActive()) {
+            return Stream.of(desc);
         }
-        return matches;
+        return matching(CompiledGoal.of(desc));
     }
 
-    private void addAllMatches(List<Description> matches, Collection<Description> candidates, Description goal) {
-        for (Description d: candidates) {
-            Description match = d.matchFor(goal);
-            if (match != null) {
-                matches.add(match);
-            }
+    public Stream<Description> matching(CompiledGoal goal) {
+        Description desc = goal.goal();
+        if (desc.isActive()) {
+            return Stream.of(desc);
         }
+        if (!desc.isTyped()) {
+            return Stream.empty();
+        }
+        return candidatesFor(desc).stream().map(goal::matchFor).filter(Objects::nonNull);
+    }
+
+    private Description firstMatch(Description desc) {
+        return matching(desc).findFirst().orElse(null);
+    }
 
+    /**
+     * @param k most results wanted
+     * @return at most k implementations matching desc, best for its quality first
+     */
+    public List<Description> bestMatches(Description desc, int k) {
+        List<Description> matches = implementationsMatching(desc);
+        if (desc.quality() == null || desc.isActive()) {
+            return matches.subList(0, Math.min(k, matches.size()));  // advertised order
+        }
+        return ranking.best(desc, matches, k);
     }
+
     @Override
     public Description bestMatch(Description desc) throws NoImplementationFound {
-        return firstOf(implementationsMatching(desc));  // no other criteria for best
+        if (desc.quality() != null) {
+            List<Description> best = bestMatches(desc, 1);  // not cached: plans are cached by type and properties
+            return best.isEmpty() ? null : best.get(0);
+        }
+        PlanCache cache = planCache;
+        GoalKey key = (cache == null || desc.isActive()) ? null : GoalKey.of(desc);
+        if (key == null) {
+            return firstMatch(desc);  // without a quality, the first advertised is best
+        }
+        Description best = cache.get(key);
+        if (best == null) {
+            long version = cache.version(key.type());
+            best = firstMatch(desc);
+            if (best != null) {
+                cache.put(key, best, version);
+            }
+        }
+        return best;
     }
 
     protected abstract Collection<Description> implementationsByName(String name);
@@ -51,4 +139,15 @@ public abstract class AbstractRepository implements Repository {
     }
 
     protected abstract Collection<Description> implementationsByType(String type);
+
+    /**
+     * Implementations worth trying to match against goal.
+     * Subclasses with an index may return fewer than implementationsByType, but
+     * must keep every implementation that could match and keep advertised order.
+     * @param goal typed description to match
+     * @return candidates for Description.matchFor
+     */
+    protected Collection<Description> candidatesFor(Description goal) {
+        return implementationsByType(goal.type());
+    }
 }
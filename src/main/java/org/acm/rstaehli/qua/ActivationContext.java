@@ -0,0 +1,111 @@
+package org.acm.rstaehli.qua;
+
+import org.acm.rstaehli.qua.exceptions.NoImplementationFound;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State of one activation that lets equivalent dependencies share one service.
+ *
+ * When several dependents ask for the same unplanned goal, e.g. two services
+ * each depending on a connection pool of the same type and properties, the
+ * first goal seen is planned, assembled and started, and every dependent is
+ * wired to it.  Goals are equivalent when they have the same name, or the same
+ * type and plain property values (as for the plan cache).  Services of a
+ * prototype type are built once per dependent instead.
+ */
+public class ActivationContext {
+
+    private final Map<Object, Description> goals = new ConcurrentHashMap<>();  // GoalKey or name -> first goal
+    private final Set<String> prototypes = ConcurrentHashMap.newKeySet();
+    private final Map<Description, FutureTask<Void>> planning = new IdentityHashMap<>();
+    private final AtomicInteger reused = new AtomicInteger();
+
+    /**
+     * build a separate service for every dependency on type.
+     */
+    public ActivationContext prototype(String type) {
+        prototypes.add(Symbols.intern(type));
+        return this;
+    }
+
+    public boolean isPrototype(String type) {
+        return prototypes.contains(type);
+    }
+
+    /**
+     * @param goal dependency of some Description in this activation
+     * @return the first goal equivalent to goal, or goal if it is the first or cannot be shared
+     */
+    public Description shared(Description goal) {
+        if (goal.isPlanned() || isPrototype(goal.type())) {
+            return goal;
+        }
+        Object key = goal.isTyped() ? GoalKey.of(goal) : nameOf(goal);
+        if (key == null) {
+            return goal;  // nested values may still change, so not comparable
+        }
+        Description first = goals.putIfAbsent(key, goal);
+        if (first == null || first == goal) {
+            return goal;
+        }
+        reused.incrementAndGet();
+        return first;
+    }
+
+    private static Object nameOf(Description goal) {
+        Map<String, Object> properties = goal.properties();
+        return properties == null ? null : properties.get("name");
+    }
+
+    /**
+     * Plan d unless it is planned already.  A goal shared by several dependents
+     * may be reached from several threads: one plans it and the others wait.
+     */
+    void planOnce(Description d, Repository repo, Executor executor) throws NoImplementationFound {
+        if (d.isPlanned()) {
+            return;
+        }
+        FutureTask<Void> task;
+        synchronized (planning) {
+            task = planning.get(d);
+            if (task == null) {
+                task = new FutureTask<>(() -> {
+                    d.plan(repo, executor, this);
+                    return null;
+                });
+                planning.put(d, task);
+            }
+        }
+        task.run();  // does nothing if another thread already started it
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NoImplementationFound) {
+                throw (NoImplementationFound) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted waiting for a shared dependency", e);
+        }
+    }
+
+    /**
+     * @return number of dependencies wired to a service built for an equivalent goal
+     */
+    public int reused() {
+        return reused.get();
+    }
+}
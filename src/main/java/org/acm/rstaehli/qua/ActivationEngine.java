@@ -0,0 +1,169 @@
+package org.acm.rstaehli.qua;
+
+import org.acm.rstaehli.qua.exceptions.NoImplementationFound;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Activates a Description and everything it depends on, with a view of the whole graph.
+ *
+ * The graph of nested and construction dependencies, including builders, is
+ * planned and flattened first, so a dependency cycle is reported before any
+ * builder runs.  Each service is then assembled and started on the executor as
+ * soon as all its dependencies are active: independent branches run at the same
+ * time and a wide graph takes about as long as its longest chain of dependencies.
+ * A Description reached through several dependents is activated once.
+ */
+public class ActivationEngine {
+
+    private final Executor executor;
+
+    /**
+     * @param executor runs builders; bound its threads to bound how many builders run at once
+     */
+    public ActivationEngine(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * A Description in the graph and the nodes it depends on.
+     */
+    private static class Node {
+        final Description description;
+        final List<Node> dependencies = new ArrayList<>();
+        boolean visiting = true;  // until all dependencies are visited
+        CompletableFuture<Description> active;
+
+        Node(Description description) {
+            this.description = description;
+        }
+    }
+
+    /**
+     * @return root once it and all its dependencies are active
+     * @throws NoImplementationFound if some dependency has no implementation in repo
+     * @throws IllegalStateException if the dependencies form a cycle
+     */
+    public Description activate(Description root, Repository repo) throws NoImplementationFound {
+        return activate(root, repo, null);
+    }
+
+    /**
+     * @param context shares one dependency among equivalent goals, or null
+     */
+    public Description activate(Description root, Repository repo, ActivationContext context)
+            throws NoImplementationFound {
+        try {
+            return activateAsync(root, repo, context).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof NoImplementationFound) {
+                throw (NoImplementationFound) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return future completed with root once active, or exceptionally with
+     * NoImplementationFound or IllegalStateException as cause
+     */
+    public CompletableFuture<Description> activateAsync(Description root, Repository repo,
+                                                        ActivationContext context) {
+        List<Node> order = new ArrayList<>();  // dependencies before their dependents
+        try {
+            visit(root, repo, context, new IdentityHashMap<>(), new ArrayList<>(), order);
+        } catch (NoImplementationFound | RuntimeException e) {
+            CompletableFuture<Description> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        for (Node node: order) {
+            node.active = schedule(node);
+        }
+        return order.get(order.size() - 1).active;
+    }
+
+    /**
+     * plan d if needed, then visit its dependencies depth first.
+     * @param path descriptions from the root to d, to report a cycle
+     * @param order receives each node after all its dependencies
+     */
+    private Node visit(Description d, Repository repo, ActivationContext context, Map<Description, Node> nodes,
+                       List<Description> path, List<Node> order) throws NoImplementationFound {
+        Node node = nodes.get(d);
+        if (node != null) {
+            if (node.visiting) {
+                throw new IllegalStateException("dependency cycle: " + cycle(path, d));
+            }
+            return node;
+        }
+        node = new Node(d);
+        nodes.put(d, node);
+        if (d.isActive()) {
+            node.visiting = false;
+            order.add(node);
+            return node;  // nothing to build, e.g. a builder's own description
+        }
+        path.add(d);
+        if (!d.isPlanned()) {
+            d.planSelf(repo);
+            if (context != null) {
+                d.replaceChildren(context::shared);
+            }
+        }
+        d.copyTemplates();
+        Set<Description> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Description child: d.childDescriptions()) {
+            if (seen.add(child)) {
+                node.dependencies.add(visit(child, repo, context, nodes, path, order));
+            }
+        }
+        d.computeStatus();  // provisioned, as all dependencies are now
+        path.remove(path.size() - 1);
+        node.visiting = false;
+        order.add(node);
+        return node;
+    }
+
+    private static String cycle(List<Description> path, Description repeated) {
+        StringJoiner names = new StringJoiner(" -> ");
+        int start = path.size() - 1;
+        while (path.get(start) != repeated) {  // by identity, as equal descriptions may differ
+            start--;
+        }
+        for (int i = start; i < path.size(); i++) {
+            names.add(path.get(i).label());
+        }
+        return names.add(repeated.label()).toString();
+    }
+
+    private CompletableFuture<Description> schedule(Node node) {
+        Description d = node.description;
+        if (node.dependencies.isEmpty() && d.isActive()) {
+            return CompletableFuture.completedFuture(d);
+        }
+        CompletableFuture<?>[] dependencies = new CompletableFuture<?>[node.dependencies.size()];
+        for (int i = 0; i < dependencies.length; i++) {
+            dependencies[i] = node.dependencies.get(i).active;
+        }
+        return CompletableFuture.allOf(dependencies).thenApplyAsync(ready -> {
+            try {
+                if (!d.isAssembled()) {
+                    d.assembleSelf();
+                }
+                if (!d.isActive()) {
+                    d.startSelf();
+                }
+                return d;
+            } catch (NoImplementationFound e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+}
@@ -12,17 +12,30 @@ public class BehaviorImpl implements Behavior {
 
     private static final Logger logger = Logger.getLogger(BehaviorImpl.class);
 
-    public static final Map<String, Object> ANY_PROPERTIES = new HashMap();  // signal to match any properties map
-    {
-        ANY_PROPERTIES.put("*","*");  // even when this map is copied/translated, these values signal ANY_PROPERTIES
-    }
+    // signal to match any properties map; even when this map is copied/translated, these values signal ANY_PROPERTIES
+    public static final Map<String, Object> ANY_PROPERTIES = PersistentMap.<String, Object>empty().plus("*", "*");
 
     protected String type;  // name of the behavior of the service
-    protected Map<String, Object> properties;  // type variables (guaranteed by the builder)
+    protected PersistentMap<String, Object> properties;  // type variables (guaranteed by the builder), never modified
+    private int hash;  // structural hash of plain properties, 0 until computed and again after any change
 
     public BehaviorImpl(String type, Map<String, Object> properties) {
-        this.type = type;
-        this.properties = properties;
+        this.type = Symbols.intern(type);
+        this.properties = persistent(properties);
+    }
+
+    /**
+     * @return p itself if persistent, else a persistent copy with interned keys
+     */
+    static PersistentMap<String, Object> persistent(Map<String, Object> p) {
+        if (p == null || p instanceof PersistentMap) {
+            return (PersistentMap<String, Object>) p;
+        }
+        PersistentMap<String, Object> copy = PersistentMap.empty();
+        for (Map.Entry<String, Object> e: p.entrySet()) {
+            copy = copy.plus(Symbols.intern(e.getKey()), e.getValue());
+        }
+        return copy;
     }
 
     public BehaviorImpl() {
@@ -34,28 +47,30 @@ public class BehaviorImpl implements Behavior {
     }
 
     public BehaviorImpl setName(String n) {
-        properties.put("name",n);
-        return this;
+        return setProperty("name", n);
     }
 
     @Override
     public BehaviorImpl setType(String t) {
-        type = t;
+        type = Symbols.intern(t);
+        hash = 0;
         return this;
     }
 
     @Override
     public BehaviorImpl setProperties(Map<String, Object> p) {
-        properties = p;
+        properties = persistent(p);
+        hash = 0;
         return this;
     }
 
     @Override
     public BehaviorImpl setProperty(String key, Object value) {
         if (properties == null) {
-            properties = new HashMap<>();
+            properties = PersistentMap.empty();
         }
-        properties.put(key, value);
+        properties = properties.plus(Symbols.intern(key), value);
+        hash = 0;
         return this;
     }
 
@@ -119,30 +134,34 @@ public class BehaviorImpl implements Behavior {
             this.type = behavior.type();
         }
         if (behavior.properties() != null) {
-            if (this.properties == null || this.properties == ANY_PROPERTIES) {
-                this.properties = new HashMap<>();
+            if (this.properties == null || this.properties.equals(ANY_PROPERTIES)) {
+                this.properties = PersistentMap.empty();
             }
-            Mappings.merge(behavior.properties(), this.properties);
+            this.properties = this.properties.plusMissing(persistent(behavior.properties()));
         }
+        hash = 0;
         return this;
     }
 
     @Override
     public Behavior specializeFor(Behavior goal) {
         // type must match
-        if (!type.equals(goal.type())) {
+        if (!Objects.equals(type, goal.type())) {
             return null;
         }
-        BehaviorImpl specialized = new BehaviorImpl().mergeBehavior(this);
+        if (!mayMatch(goal)) {
+            return null;  // rejected before copying anything
+        }
+        BehaviorImpl specialized = new BehaviorImpl().mergeBehavior(this);  // shares this map until changed
         if (specialized.properties.equals(ANY_PROPERTIES)) { // builder promises to match all properties
-            specialized.properties = goal.properties();  // so mergeBehavior the properties for the builder
+            specialized.properties = persistent(goal.properties());  // so mergeBehavior the properties for the builder
             return specialized;
         }
         // must have all goal properties
         for (String name: goal.properties().keySet()) {
             if (specialized.hasProperty(name) && specialized.getProperty(name) == Behavior.MATCH_ANY ) {
                 // MATCH_ANY is a promise from the implementation to build with required property value
-                specialized.properties.put(name, goal.properties().get(name));
+                specialized.properties = specialized.properties.plus(name, goal.properties().get(name));
             } else {
                 Object match = match(specialized.getProperty(name), goal.properties().get(name));
                 if (match == null) {
@@ -151,23 +170,50 @@ public class BehaviorImpl implements Behavior {
                             " does not match goal: " + goal.properties().get(name) + " for type: "+ type );
                     return null;
                 }
-                specialized.properties.put(name, match); // match may be mutation that conforms to goal
+                specialized.properties = specialized.properties.plus(name, match); // match may be mutation that conforms to goal
             }
         }
-        removeObsoleteWildcards(specialized.properties);  // unmatched MATCH_ANY values
+        specialized.properties = withoutWildcards(specialized.properties);  // unmatched MATCH_ANY values
         return specialized;
     }
 
-    private void removeObsoleteWildcards(Map<String, Object> map) {
-        List<String> obsolete = new ArrayList();
-        for (String key: map.keySet()) {
-            if (map.get(key) == Behavior.MATCH_ANY) {
-                obsolete.add(key);
+    /**
+     * Read-only check that every goal property could match, so most rejected
+     * candidates are never copied.  Agrees with match: a nested Description is
+     * only decided when the copy is specialized.
+     */
+    private boolean mayMatch(Behavior goal) {
+        if (properties == null || properties.equals(ANY_PROPERTIES) || goal.properties() == null) {
+            return true;  // decided as before
+        }
+        for (Map.Entry<String, Object> required: goal.properties().entrySet()) {
+            Object value = properties.get(required.getKey());
+            if (value == Behavior.MATCH_ANY || value instanceof BehaviorImpl) {
+                continue;
+            }
+            if (value instanceof String && value.equals(required.getValue())) {
+                continue;
             }
+            if (value instanceof Number && value.equals(required.getValue())) {
+                continue;
+            }
+            if (logger.isDebugEnabled()) {  // no message built for the usual rejection
+                logger.debug("property " + required.getKey() + " value: " + value +
+                        " does not match goal: " + required.getValue() + " for type: " + type);
+            }
+            return false;
         }
-        for (String key: obsolete) {
-            map.remove(key);
+        return true;
+    }
+
+    private static PersistentMap<String, Object> withoutWildcards(PersistentMap<String, Object> map) {
+        PersistentMap<String, Object> result = map;
+        for (Map.Entry<String, Object> e: map.entrySet()) {
+            if (e.getValue() == Behavior.MATCH_ANY) {
+                result = result.minus(e.getKey());
+            }
         }
+        return result;
     }
 
     protected Object match(Object value1, Object value2) {
@@ -209,6 +255,23 @@ public class BehaviorImpl implements Behavior {
         return true;
     }
 
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Behavior && equals((Behavior) other);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = 31 * Objects.hashCode(type) + Objects.hashCode(properties);
+            if (properties == null || properties.values().stream().allMatch(GoalKey::plain)) {
+                hash = h;  // a nested Description may change without this knowing, so its hash is not kept
+            }
+        }
+        return h;
+    }
+
     @Override
     public List<Description> descriptions() {
         List<Description> descriptions = new ArrayList<>();
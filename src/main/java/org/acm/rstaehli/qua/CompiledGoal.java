@@ -0,0 +1,102 @@
+package org.acm.rstaehli.qua;
+
+import java.util.Map;
+import java.util.Objects;
+
+import static org.acm.rstaehli.qua.Behavior.MATCH_ANY;
+
+/**
+ * A goal prepared once for matching against many candidates.
+ *
+ * The goal's required properties are read into arrays with the kind and hash
+ * of each value, so rejecting a candidate is one property lookup per
+ * requirement and no walk over the goal's map.  A candidate that passes is
+ * specialized by Description.matchFor, so matches are the same as matching
+ * the goal directly.
+ */
+public final class CompiledGoal {
+
+    private static final byte STRING = 0;
+    private static final byte NUMBER = 1;
+    private static final byte OTHER = 2;  // e.g. a nested Description, decided by matchFor
+
+    private final Description goal;
+    private final String type;
+    private final String[] names;
+    private final Object[] values;
+    private final byte[] kinds;
+    private final int[] hashes;
+
+    private CompiledGoal(Description goal) {
+        this.goal = goal;
+        this.type = goal.type();
+        Map<String, Object> required = goal.properties();
+        int n = required == null ? 0 : required.size();
+        names = new String[n];
+        values = new Object[n];
+        kinds = new byte[n];
+        hashes = new int[n];
+        int i = 0;
+        if (required != null) {
+            for (Map.Entry<String, Object> e: required.entrySet()) {
+                Object value = e.getValue();
+                names[i] = e.getKey();
+                values[i] = value;
+                kinds[i] = value instanceof String ? STRING : value instanceof Number ? NUMBER : OTHER;
+                hashes[i] = value == null ? 0 : value.hashCode();
+                i++;
+            }
+        }
+    }
+
+    public static CompiledGoal of(Description goal) {
+        return new CompiledGoal(goal);
+    }
+
+    public Description goal() {
+        return goal;
+    }
+
+    /**
+     * @param candidate advertised implementation
+     * @return null or a copy of candidate specialized to match the goal
+     */
+    public Description matchFor(Description candidate) {
+        if (!mayMatch(candidate.behavior())) {
+            return null;
+        }
+        return candidate.matchFor(goal);
+    }
+
+    private boolean mayMatch(Behavior candidate) {
+        if (!Objects.equals(type, candidate.type())) {
+            return false;
+        }
+        Map<String, Object> offered = candidate.properties();
+        if (offered == null || offered.equals(BehaviorImpl.ANY_PROPERTIES) || goal.properties() == null) {
+            return true;  // left to matchFor
+        }
+        for (int i = 0; i < names.length; i++) {
+            Object value = offered.get(names[i]);
+            if (value == MATCH_ANY || value instanceof BehaviorImpl) {
+                continue;  // a promise to build the value, or decided by matchFor
+            }
+            switch (kinds[i]) {
+                case STRING:
+                    if (value instanceof String && (value == values[i]
+                            || (value.hashCode() == hashes[i] && value.equals(values[i])))) {
+                        continue;
+                    }
+                    return false;
+                case NUMBER:
+                    if (value instanceof Number && value.equals(values[i])) {
+                        continue;
+                    }
+                    return false;
+                default:
+                    return false;  // as BehaviorImpl.match
+            }
+        }
+        return true;
+    }
+}
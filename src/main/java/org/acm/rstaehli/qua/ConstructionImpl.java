@@ -3,20 +3,20 @@ package org.acm.rstaehli.qua;
 import org.acm.rstaehli.qua.exceptions.NoImplementationFound;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 import static org.acm.rstaehli.qua.Lifecycle.*;
 
 public class ConstructionImpl implements Construction {
 
     private Description builderDescription;
-    private Map<String, Object> dependencies;
+    private PersistentMap<String, Object> dependencies;  // never modified, so may be shared
 
     public ConstructionImpl(Description builderDescription, Map<String, Object> dependencies) {
         this.builderDescription = builderDescription;
-        this.dependencies = dependencies;
+        this.dependencies = BehaviorImpl.persistent(dependencies);
     }
 
     @Override
@@ -40,16 +40,16 @@ public class ConstructionImpl implements Construction {
 
     @Override
     public Construction setDependencies(Map<String, Object> d) {
-        this.dependencies = d;
+        this.dependencies = BehaviorImpl.persistent(d);
         return this;
     }
 
     @Override
     public Construction setDependency(String key, Object value) {
         if (dependencies == null) {
-            dependencies = new HashMap<>();
+            dependencies = PersistentMap.empty();
         }
-        dependencies.put(key, value);
+        dependencies = dependencies.plus(Symbols.intern(key), value);
         return this;
     }
 
@@ -64,16 +64,23 @@ public class ConstructionImpl implements Construction {
             return false;
         }
         ConstructionImpl otherConstructionImpl = (ConstructionImpl)other;
-        if (!this.builderDescription.equals(otherConstructionImpl.builderDescription)) {
+        if (!Objects.equals(this.builderDescription, otherConstructionImpl.builderDescription)) {
             return false;
         }
-        if (this.dependencies == null || ((ConstructionImpl) other).dependencies == null) {
-            return false;
-        }
-        if (!this.dependencies.equals(otherConstructionImpl.dependencies)) {
-            return false;
-        }
-        return true;
+        return Objects.equals(this.dependencies, otherConstructionImpl.dependencies);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Construction && equals((Construction) other);
+    }
+
+    /**
+     * Not cached, as the builder and dependency descriptions change while they are built.
+     */
+    @Override
+    public int hashCode() {
+        return 31 * Objects.hashCode(builderDescription) + Objects.hashCode(dependencies);
     }
 
     @Override
@@ -81,10 +88,10 @@ public class ConstructionImpl implements Construction {
         if (this.builderDescription == null && goal.builderDescription() != null) {
             this.builderDescription = goal.builderDescription();
         }
-        if (this.dependencies == null && goal.dependencies() != null) {
-            this.dependencies = goal.dependencies();
+        if (goal.dependencies() != null) {
+            PersistentMap<String, Object> mine = dependencies == null ? PersistentMap.empty() : dependencies;
+            this.dependencies = mine.plusMissing(BehaviorImpl.persistent(goal.dependencies()));
         }
-        Mappings.merge(goal.dependencies(), this.dependencies);
     }
 
 
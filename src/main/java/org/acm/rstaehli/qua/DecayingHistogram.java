@@ -0,0 +1,75 @@
+package org.acm.rstaehli.qua;
+
+/**
+ * Distribution of recent durations, in which an observation counts half as
+ * much for every half life since it was recorded.
+ *
+ * Durations fall into two buckets per power of two nanoseconds, so a quantile
+ * is within about 25% of the true value.  Rather than scaling down every
+ * bucket as time passes, each new observation is weighted up, which keeps
+ * recording O(1); weights are rescaled only when they grow large.
+ */
+final class DecayingHistogram {
+
+    private static final int BUCKETS = 128;
+    private static final double RESCALE_ABOVE = 1e100;
+
+    private final double halfLifeNanos;
+    private final double[] weights = new double[BUCKETS];
+    private double total;
+    private long epoch;  // time at which an observation has weight 1
+
+    DecayingHistogram(long halfLifeNanos, long now) {
+        this.halfLifeNanos = halfLifeNanos;
+        this.epoch = now;
+    }
+
+    synchronized void record(long nanos, long now) {
+        double weight = Math.pow(2, (now - epoch) / halfLifeNanos);
+        if (weight > RESCALE_ABOVE) {
+            for (int i = 0; i < BUCKETS; i++) {
+                weights[i] /= weight;
+            }
+            total /= weight;
+            epoch = now;
+            weight = 1;
+        }
+        weights[bucket(Math.max(0, nanos))] += weight;
+        total += weight;
+    }
+
+    /**
+     * @param q between 0 and 1, e.g. 0.9 for the 90th percentile
+     * @return estimated duration in nanoseconds, or -1 if nothing was recorded
+     */
+    synchronized double quantile(double q) {
+        if (total == 0) {
+            return -1;
+        }
+        double wanted = q * total;
+        double seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += weights[i];
+            if (seen >= wanted && weights[i] > 0) {
+                return middle(i);
+            }
+        }
+        return middle(BUCKETS - 1);
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos < 2) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int half = (int) (nanos >>> (exponent - 1)) & 1;  // upper or lower half of [2^e, 2^(e+1))
+        return 2 * exponent + half;
+    }
+
+    private static double middle(int bucket) {
+        if (bucket < 2) {
+            return bucket;
+        }
+        return Math.pow(2, bucket / 2) * (bucket % 2 == 0 ? 1.25 : 1.75);
+    }
+}
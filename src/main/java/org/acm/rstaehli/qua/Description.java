@@ -4,6 +4,11 @@ import org.acm.rstaehli.qua.exceptions.NoImplementationFound;
 import org.apache.log4j.Logger;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 import static org.acm.rstaehli.qua.Behavior.UNKNOWN_TYPE;
 import static org.acm.rstaehli.qua.Lifecycle.*;
@@ -29,6 +34,11 @@ public class Description {
     protected Quality quality;
     protected Construction construction;
     private Map<String, Object> interfaces;
+    private Description implementation;  // advertised implementation this was matched or planned from
+    private Description dependent;  // planned this as a copy of one of its dependencies, to report cycles
+    private volatile boolean template;  // interned by a HashConsTable, so never built itself
+    private volatile boolean built;  // assembled by its own builder, so deactivate and recycle may stop it
+    private ImplementationKey key;  // made when first needed, as an advertised implementation does not change
     public static final String PRIMARY_SERVICE_NAME = "serviceObject"; // unique key for primary service interface
 
 //    protected Description builderDescription = null; // service to build type from dependencies
@@ -36,6 +46,9 @@ public class Description {
 //    protected Object serviceObject;  // the primary object interface of this description
 //    protected Map<String, String> interfaces;  // repository names of all interfaces
     protected Lifecycle status = UNKNOWN;
+    private CompletableFuture<Description> planning;  // pending planAsync, shared by all callers
+    private CompletableFuture<Description> provisioning;  // pending provisionAsync, likewise
+    private CompletableFuture<Description> assembling;  // pending assembleAsync, likewise
 
 
     public Description(Map<String, Object> jsonObject) {
@@ -208,6 +221,25 @@ public class Description {
         return (List<Description>)properties().get(key);
     }
 
+    /**
+     * @return the advertised implementation this was matched or planned from, or null
+     */
+    public Description implementation() {
+        return implementation;
+    }
+
+    public Quality quality() {
+        return quality;
+    }
+
+    /**
+     * @param q of a goal, what it requires; of an implementation, the errors it expects
+     */
+    public Description setQuality(Quality q) {
+        quality = q;
+        return this;
+    }
+
     public Description setConstruction(Construction c) {
         construction = c;
         return this;
@@ -262,30 +294,190 @@ public class Description {
      * @throws NoImplementationFound
      */
     public Description plan(Repository repo) throws NoImplementationFound {
+        return plan(repo, null);
+    }
+
+    /**
+     * plan as above, but plan sibling dependencies concurrently on executor.
+     * All dependencies are planned before this status changes.  A dependency
+     * reached from several dependents is planned by one thread while the others wait.
+     * @param repo has implementation descriptions that may provide the needed plan.
+     * @param executor runs sibling dependency plans, e.g. ForkJoinPool.commonPool(), or null to plan serially.
+     * @return this Description updated with construction plan.
+     * @throws NoImplementationFound
+     */
+    public Description plan(Repository repo, Executor executor) throws NoImplementationFound {
+        return plan(repo, executor, null);
+    }
+
+    /**
+     * plan as above, building dependencies with equivalent goals once.
+     * @param context shares one dependency among all equivalent goals in this activation, or null
+     */
+    public synchronized Description plan(Repository repo, Executor executor, ActivationContext context)
+            throws NoImplementationFound {
         if (isPlanned()) {
             return this;
         }
+        planSelf(repo);
+        if (context == null) {
+            Siblings.forEach(childDescriptions(), executor, d -> {
+                if (!d.isPlanned()) {
+                    d.plan(repo, executor);
+                }
+            });
+        } else {
+            replaceChildren(context::shared);
+            Siblings.forEach(childDescriptions(), executor, d -> context.planOnce(d, repo, executor));
+        }
+
+        computeStatus();
+        return this;
+    }
+
+    /**
+     * merge the best implementation into this, but leave dependencies unplanned.
+     */
+    void planSelf(Repository repo) throws NoImplementationFound {
         Description impl = repo.bestMatch(this);
         if (impl == null) {
             logger.error("no implementation for type: " + this.behavior.type());
             throw new NoImplementationFound("for type: " + this.behavior.type());
         }
 
+        implementation = impl.implementation == null ? impl : impl.implementation;
+        checkNoCycle();
+        Set<Description> own = Collections.newSetFromMap(new IdentityHashMap<>());
+        replaceChildren(d -> {
+            own.add(d);
+            return d;
+        });
         behavior.mergeBehavior(impl.behavior);
-        construction.mergeConstruction(impl.construction);
+        if (construction == null) {
+            construction = new ConstructionImpl(null, null);  // goal read without any plan
+        }
+        if (impl.construction != null) {
+            construction.mergeConstruction(impl.construction);
+        }
+        copyChildren(d -> d.template || !own.contains(d), new IdentityHashMap<>());  // merged ones are the implementation's
         if (interfaces == null) {
-            interfaces = impl.interfaces;
+            interfaces = impl.interfaces == null ? null : new HashMap<>(impl.interfaces);
         } else {
             Mappings.merge(impl.interfaces, interfaces);
         }
-        for (Description d: childDescriptions()) {
-            if (!d.isPlanned()) {
-                d.plan(repo);
+    }
+
+    /**
+     * Replace nested descriptions that are not active with copies, so planning
+     * and building this never changes one shared with others, e.g. a dependency of
+     * an advertised implementation or one interned by a HashConsTable.
+     * @param shared true for each nested Description this must not build itself
+     * @param copies copy already made of each Description, so one nested twice is copied once
+     */
+    private void copyChildren(Predicate<Description> shared, Map<Description, Description> copies) {
+        replaceChildren(d -> {
+            if (d.isActive() || !shared.test(d)) {
+                return d;
+            }
+            Description copy = copies.get(d);
+            if (copy == null) {
+                copy = d.copy(copies);
+                copy.dependent = this;
             }
-        };
+            return copy;
+        });
+    }
 
-        computeStatus();
-        return this;
+    /**
+     * copy nested templates before provisioning or assembling what is already planned.
+     */
+    void copyTemplates() {
+        if (construction != null) {
+            copyChildren(d -> d.template, new IdentityHashMap<>());
+        }
+    }
+
+    /**
+     * @return key equal for every Description planned from the same advertised implementation,
+     * and for one decoded or advertised again: the implementation compared by structure and quality
+     */
+    Object implementationKey() {
+        Description impl = implementation == null ? this : implementation;
+        ImplementationKey k = impl.key;
+        if (k == null) {
+            k = new ImplementationKey(impl);
+            impl.key = k;  // another thread may make an equal one
+        }
+        return k;
+    }
+
+    /**
+     * An advertised implementation with its hash computed once.
+     */
+    private static final class ImplementationKey {
+        final Description implementation;
+        final int hash;
+
+        ImplementationKey(Description implementation) {
+            this.implementation = implementation;
+            this.hash = implementation.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ImplementationKey)) {
+                return false;
+            }
+            ImplementationKey other = (ImplementationKey) o;
+            return hash == other.hash && implementation.equals(other.implementation)
+                    && sameQuality(implementation.quality, other.implementation.quality);
+        }
+
+        private static boolean sameQuality(Quality one, Quality two) {
+            return one == two || (one != null && two != null && one.equals(two));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * mark this as interned by a HashConsTable: it is shared by many descriptions, so
+     * each plans and builds its own copy instead.
+     */
+    void markTemplate() {
+        template = true;
+    }
+
+    /**
+     * @throws IllegalStateException if some dependent of this was planned from the same implementation,
+     * which would then need itself to be built
+     */
+    private void checkNoCycle() {
+        for (Description d = dependent; d != null; d = d.dependent) {
+            if (d.implementation == implementation) {
+                Deque<String> names = new ArrayDeque<>();  // from d down to this
+                for (Description e = this; e != d; e = e.dependent) {
+                    names.push(e.label());
+                }
+                names.push(d.label());
+                throw new IllegalStateException("dependency cycle: " + String.join(" -> ", names));
+            }
+        }
+    }
+
+    /**
+     * @return name property if any, else type, e.g. to name this in messages
+     */
+    String label() {
+        Map<String, Object> properties = properties();
+        Object name = properties == null ? null : properties.get("name");
+        return name == null ? type() : name.toString();
     }
 
     public Description provision() throws NoImplementationFound {
@@ -296,27 +488,92 @@ public class Description {
      * discover, provide and/or build all required dependencies
      */
     public Description provision(Repository repo) throws NoImplementationFound {
+        return provision(repo, null);
+    }
+
+    /**
+     * provision as above, but provision sibling dependencies concurrently on executor.
+     * @param executor runs sibling dependency provisioning, or null to provision serially.
+     */
+    public synchronized Description provision(Repository repo, Executor executor) throws NoImplementationFound {
         if (isProvisioned()) {
             return this;
         }
         if (!isPlanned()) {
-            return plan(repo).provision(repo);
+            return plan(repo, executor).provision(repo, executor);
         }
-        for (Description d: childDescriptions()) {
+        copyTemplates();
+        Siblings.forEach(childDescriptions(), executor, d -> {
             if (!d.isProvisioned()) {
-                d.provision(repo);
+                d.provision(repo, executor);
             }
-        };
+        });
         status = PROVISIONED;
         return this;
     }
 
-    private List<Description> childDescriptions() {
+    List<Description> childDescriptions() {
         List<Description> descriptions = behavior.descriptions();
         descriptions.addAll(construction.descriptions());
         return descriptions;
     }
 
+    /**
+     * Replace each Description in properties (also within lists), dependencies and builder.
+     * @param replacement returns the Description to use instead of its argument, or the argument
+     */
+    void replaceChildren(UnaryOperator<Description> replacement) {
+        Map<String, Object> properties = properties();
+        if (properties != null) {
+            for (Map.Entry<String, Object> e: properties.entrySet()) {
+                Object value = replaced(e.getValue(), replacement);
+                if (value != e.getValue()) {
+                    behavior.setProperty(e.getKey(), value);  // properties are persistent, so iteration is unaffected
+                }
+            }
+        }
+        if (construction == null) {
+            return;
+        }
+        Map<String, Object> dependencies = construction.dependencies();
+        if (dependencies != null) {
+            for (Map.Entry<String, Object> e: dependencies.entrySet()) {
+                Object value = replaced(e.getValue(), replacement);
+                if (value != e.getValue()) {
+                    construction.setDependency(e.getKey(), value);
+                }
+            }
+        }
+        Description builder = construction.builderDescription();
+        if (builder != null) {
+            Description value = replacement.apply(builder);
+            if (value != builder) {
+                construction.setBuilder(value);
+            }
+        }
+    }
+
+    private static Object replaced(Object value, UnaryOperator<Description> replacement) {
+        if (value instanceof Description) {
+            return replacement.apply((Description) value);
+        }
+        if (value instanceof List) {
+            List<Object> list = (List<Object>) value;
+            List<Object> copy = null;  // made only when something is replaced
+            for (int i = 0; i < list.size(); i++) {
+                Object o = replaced(list.get(i), replacement);
+                if (o != list.get(i)) {
+                    if (copy == null) {
+                        copy = new ArrayList<>(list);
+                    }
+                    copy.set(i, o);
+                }
+            }
+            return copy == null ? value : copy;
+        }
+        return value;
+    }
+
     public Description assemble() throws NoImplementationFound {
         return assemble(null);
     }
@@ -328,20 +585,45 @@ public class Description {
         if (!isProvisioned()) {
             provision(repo);
         }
+        copyTemplates();
         for (Description d: childDescriptions()) {
             if (!d.isAssembled()) {
                 d.assemble();
             }
         }
+        assembleSelf();
+        return this;
+    }
+
+    /**
+     * build this from its dependencies, which must already be assembled.
+     */
+    void assembleSelf() throws NoImplementationFound {
         construction.builder().assemble(this);
+        built = true;
         status = ASSEMBLED;
-        return this;
+    }
+
+    void startSelf() throws NoImplementationFound {
+        construction.builder().start(this);
+        status = ACTIVE;
     }
 
     public Description activate() throws NoImplementationFound {
         return activate(null);
     }
 
+    /**
+     * activate as below, building dependencies with equivalent goals once.
+     * @param context shares one dependency among all equivalent goals in this activation
+     */
+    public Description activate(Repository repo, ActivationContext context) throws NoImplementationFound {
+        if (!isPlanned()) {
+            plan(repo, null, context);
+        }
+        return activate(repo);
+    }
+
     public Description activate(Repository repo) throws NoImplementationFound {
         if (isActive()) {
             return this;  // already assembled and active
@@ -349,11 +631,175 @@ public class Description {
         if (!isAssembled()) {
             return assemble(repo);
         }
-        construction.builder().start(this);
-        status = ACTIVE;
+        for (Description d: builtDependencies()) {
+            d.activate(repo);  // e.g. stopped by deactivate
+        }
+        startSelf();
+        return this;
+    }
+
+    /**
+     * stop this service, then the dependencies built for it.  They stay
+     * assembled, so activate only starts them again.
+     */
+    public synchronized Description deactivate() throws NoImplementationFound {
+        if (!isActive() || construction == null) {
+            return this;  // e.g. a service object given as is, with no builder to stop it
+        }
+        construction.builder().stop(this);
+        status = ASSEMBLED;
+        for (Description d: builtDependencies()) {
+            d.deactivate();
+        }
+        return this;
+    }
+
+    /**
+     * stop this service and let its builder release what it holds, then
+     * recycle the dependencies built for it likewise.
+     * It must be assembled again before use.
+     */
+    public synchronized Description recycle() throws NoImplementationFound {
+        if (!isAssembled() || construction == null) {
+            return this;
+        }
+        List<Description> dependencies = builtDependencies();
+        deactivate();
+        construction.builder().recycle(this);
+        interfaces = null;
+        assembling = null;
+        built = false;
+        status = PROVISIONED;
+        for (Description d: dependencies) {
+            d.recycle();
+        }
         return this;
     }
 
+    /**
+     * @return distinct nested descriptions assembled here by their own builder, not the
+     * builder nor services given already built
+     */
+    private List<Description> builtDependencies() {
+        if (construction == null) {
+            return Collections.emptyList();
+        }
+        Set<Description> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Description> dependencies = new ArrayList<>();
+        for (Description d: childDescriptions()) {
+            if (d.built && d != construction.builderDescription() && seen.add(d)) {
+                dependencies.add(d);
+            }
+        }
+        return dependencies;
+    }
+
+    // asynchronous lifecycle operations: builders may do slow I/O without holding the calling thread
+
+    private interface LifecycleStep {
+        Description apply() throws NoImplementationFound;
+    }
+
+    private static Description unchecked(LifecycleStep step) {
+        try {
+            return step.apply();
+        } catch (NoImplementationFound e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * plan on executor.  Callers asking again before it is done get the same future.
+     * @return future completed with this Description, or exceptionally with NoImplementationFound as cause
+     */
+    public synchronized CompletableFuture<Description> planAsync(Repository repo, Executor executor) {
+        if (planning != null && !planning.isCompletedExceptionally()) {
+            return planning;  // pending, or done since a caller asked; a failure is tried again
+        }
+        if (isPlanned()) {
+            return CompletableFuture.completedFuture(this);
+        }
+        planning = CompletableFuture.supplyAsync(() -> unchecked(() -> plan(repo, executor)), executor);
+        return planning;
+    }
+
+    /**
+     * provision on executor.  Callers asking again before it is done get the same future.
+     */
+    public synchronized CompletableFuture<Description> provisionAsync(Repository repo, Executor executor) {
+        if (provisioning != null && !provisioning.isCompletedExceptionally()) {
+            return provisioning;  // pending, or done since a caller asked; a failure is tried again
+        }
+        if (isProvisioned()) {
+            return CompletableFuture.completedFuture(this);
+        }
+        provisioning = CompletableFuture.supplyAsync(() -> unchecked(() -> provision(repo, executor)), executor);
+        return provisioning;
+    }
+
+    /**
+     * provision, then assemble all dependencies concurrently and assemble this
+     * only when every dependency future has completed.
+     * A Description shared by several parents is assembled once.
+     * @param executor runs builders, e.g. a virtual thread per task executor on newer JDKs
+     */
+    public synchronized CompletableFuture<Description> assembleAsync(Repository repo, Executor executor) {
+        if (isAssembled()) {
+            return CompletableFuture.completedFuture(this);
+        }
+        if (assembling == null) {
+            assembling = provisionAsync(repo, executor).thenCompose(provisioned -> {
+                copyTemplates();
+                List<CompletableFuture<Description>> children = new ArrayList<>();
+                for (Description d: childDescriptions()) {
+                    children.add(d.assembleAsync(repo, executor));
+                }
+                return CompletableFuture.allOf(children.toArray(new CompletableFuture[0]))
+                        .thenApplyAsync(done -> unchecked(() -> {
+                            assembleSelf();
+                            return this;
+                        }), executor);
+            });
+        }
+        return assembling;
+    }
+
+    /**
+     * assemble (asynchronously, as above) and then start this service.  If it
+     * is assembled already, e.g. stopped by deactivate, the dependencies built
+     * for it are started again first, as activate does.
+     */
+    public CompletableFuture<Description> activateAsync(Repository repo, Executor executor) {
+        if (isActive()) {
+            return CompletableFuture.completedFuture(this);
+        }
+        CompletableFuture<?> ready;
+        if (isAssembled()) {
+            List<CompletableFuture<Description>> restarted = new ArrayList<>();
+            for (Description d: builtDependencies()) {
+                restarted.add(d.activateAsync(repo, executor));
+            }
+            ready = CompletableFuture.allOf(restarted.toArray(new CompletableFuture[0]));
+        } else {
+            ready = assembleAsync(repo, executor);
+        }
+        return ready.thenApplyAsync(done -> unchecked(() -> {
+            synchronized (this) {
+                if (!isActive()) {  // another caller may have started it first
+                    startSelf();
+                }
+            }
+            return this;
+        }), executor);
+    }
+
+    /**
+     * @return future completed with the primary service object once active
+     */
+    public CompletableFuture<Object> serviceAsync(Repository repo, Executor executor) {
+        return activateAsync(repo, executor).thenApply(Description::service);
+    }
+
     /**
      * Attempt to create a copy of this specialized to match the goal.
      *
@@ -369,10 +815,33 @@ public class Description {
         copy.behavior = specializedBehavior;
         copy.quality = this.quality;
         copy.construction = this.construction;
+        copy.implementation = this.implementation == null ? this : this.implementation;
         copy.computeStatus();   // may have changed from copied values
         return copy;
     }
 
+    /**
+     * @return a Description built separately from this: same behavior, quality and plan, with
+     * nested descriptions copied likewise, but not assembled.  Active dependencies such as builders are shared.
+     */
+    public Description copy() {
+        return copy(new IdentityHashMap<>());
+    }
+
+    private Description copy(Map<Description, Description> copies) {
+        Description copy = new Description();
+        copies.put(this, copy);
+        copy.behavior = new BehaviorImpl(type(), properties());
+        copy.quality = quality;
+        copy.implementation = implementation;
+        if (construction != null) {
+            copy.construction = new ConstructionImpl(construction.builderDescription(), construction.dependencies());
+        }
+        copy.copyChildren(d -> true, copies);
+        copy.computeStatus();
+        return copy;
+    }
+
     public Map<String, Object> dependencies() {
         return construction.dependencies();
     }
@@ -402,4 +871,32 @@ public class Description {
         return this;
     }
 
+    /**
+     * Descriptions are equal when their behavior, construction and interfaces are equal.
+     * The hash is structural but leaves out interfaces, which are set as the service
+     * is built.  A Description must still not be planned while it is a key in a hash
+     * table; planning a copy, as plan does for nested descriptions, leaves it unchanged.
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof Description)) {
+            return false;
+        }
+        Description d = (Description) other;
+        return Objects.equals(behavior, d.behavior) && Objects.equals(construction, d.construction)
+                && interfacesOrEmpty().equals(d.interfacesOrEmpty());
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Objects.hashCode(behavior) + Objects.hashCode(construction);
+    }
+
+    private Map<String, Object> interfacesOrEmpty() {
+        return interfaces == null ? Collections.emptyMap() : interfaces;  // getInterface creates an empty map
+    }
+
 }
@@ -0,0 +1,15 @@
+package org.acm.rstaehli.qua;
+
+/**
+ * Errors of implementations measured at run time, which QualityRanking
+ * prefers over the errors implementations state in their Quality.
+ */
+public interface ErrorEstimates {
+
+    /**
+     * @param impl advertised implementation, as from Description.implementation()
+     * @param dimension error dimension, e.g. "latency"
+     * @return expected error, or null if nothing is known
+     */
+    Double estimate(Description impl, String dimension);
+}
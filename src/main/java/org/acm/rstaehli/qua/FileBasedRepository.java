@@ -4,22 +4,81 @@ import org.acm.rstaehli.qua.exceptions.NoImplementationFound;
 import org.acm.rstaehli.qua.tools.Serializer;
 import org.apache.log4j.Logger;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * read named implementations from file.
  * Configure with directory for files.
  * Use in-memory repository for implementations already read, and for
  * implementations not from file.
+ * Names with no file are answered from memory: a listing of the directory and
+ * a cache of misses are each trusted for cacheTimeToLive milliseconds.
+ * A file is read again only when its modification time changes, and then its
+ * new implementation replaces the old one in the cache.
+ * After startWatching, lookups never touch the disk: a WatchService on the
+ * directory reports changed files, and only those files and the files that
+ * inherit from them are read again.
  */
 public class FileBasedRepository extends AbstractRepository {
 
     private static final Logger logger = Logger.getLogger(Description.class);
 
-    private AbstractRepository cacheRepository;
+    private InMemoryRepository cacheRepository;
     private String fileDirectoryPath;
     private Serializer serializer;
+    private long cacheTimeToLive = 5000;  // millis to trust directory listing, misses and file times
+    private final Map<String, Long> misses = new ConcurrentHashMap<>();  // file name part -> expiry time
+    private volatile Listing listing;  // names of json files in directory
+    private final Map<String, Loaded> loaded = new ConcurrentHashMap<>();  // name -> implementation read from file
+    private final Map<String, Object> loadLocks = new ConcurrentHashMap<>();  // one file read per name at a time
+    private final Map<String, Refresh> refreshing = new ConcurrentHashMap<>();  // name -> refresh in flight
+    private volatile boolean watching;  // when true, files are read only when a watch event reports a change
+    private WatchService watchService;
+    private Thread watcher;
+
+    private static class Loaded {
+        final Description impl;  // null if the file could not be activated
+        final NoImplementationFound failure;  // why impl is null
+        final long modified;  // file modification time when read
+        final Set<String> ancestors;  // files impl inherits from, known only while watching
+        volatile long checkedUntil;  // trust impl without checking the file until then
+
+        Loaded(Description impl, NoImplementationFound failure, long modified, Set<String> ancestors,
+               long checkedUntil) {
+            this.impl = impl;
+            this.failure = failure;
+            this.modified = modified;
+            this.ancestors = ancestors;
+            this.checkedUntil = checkedUntil;
+        }
+    }
+
+    /**
+     * A refresh of one name, which other lookups of that name wait for instead
+     * of reading and activating the file again.
+     */
+    private static class Refresh {
+        final Thread owner = Thread.currentThread();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+    }
+
+    private static class Listing {
+        final Set<String> names;
+        final long expiry;
+
+        Listing(Set<String> names, long expiry) {
+            this.names = names;
+            this.expiry = expiry;
+        }
+    }
 
     public FileBasedRepository(String dir) {
         cacheRepository = new InMemoryRepository();
@@ -27,27 +86,339 @@ public class FileBasedRepository extends AbstractRepository {
         serializer = new Serializer();
     }
 
+    /**
+     * @param millis how long a directory listing, missing file or file modification time is trusted,
+     *               0 to check every lookup.
+     * @return this repository
+     */
+    public FileBasedRepository setCacheTimeToLive(long millis) {
+        this.cacheTimeToLive = millis;
+        this.listing = null;
+        misses.clear();
+        for (Loaded l: loaded.values()) {
+            l.checkedUntil = 0;
+        }
+        return this;
+    }
+
+    /**
+     * Watch the directory for changed files instead of checking files on lookup.
+     * Changes are applied by a daemon thread, usually within a second of the change.
+     * @return this repository
+     * @throws IOException if the directory cannot be watched
+     */
+    public synchronized FileBasedRepository startWatching() throws IOException {
+        if (watching) {
+            return this;
+        }
+        Path directory = Paths.get(fileDirectoryPath);
+        watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        watching = true;
+        listing = null;  // list once more, then keep the listing current from events
+        misses.clear();
+        for (String name: loaded.keySet()) {
+            synchronized (loadLock(name)) {  // learn ancestors, so parent changes reach this name
+                Loaded l = loaded.get(name);
+                if (l != null) {  // next lookup checks the file once more, then trusts events
+                    loaded.put(name, new Loaded(l.impl, l.failure, l.modified, ancestors(fileNamePart(name)), 0));
+                }
+            }
+        }
+        watcher = new Thread(this::watch, "qua-repository-watcher " + fileDirectoryPath);
+        watcher.setDaemon(true);
+        watcher.start();
+        return this;
+    }
+
+    /**
+     * Stop watching and go back to checking files on lookup.
+     */
+    public synchronized void stopWatching() {
+        if (!watching) {
+            return;
+        }
+        watching = false;
+        try {
+            watchService.close();  // ends the watcher thread
+        } catch (IOException e) {
+            logger.error("could not close watch service for: " + fileDirectoryPath + ".  Exception: " + e);
+        }
+        listing = null;
+        for (Loaded l: loaded.values()) {
+            l.checkedUntil = 0;
+        }
+    }
+
+    private void watch() {
+        try {
+            while (watching) {
+                WatchKey key = watchService.take();
+                Set<String> changed = new HashSet<>();
+                boolean overflow = false;
+                do {  // collect a burst of events so each file is read once
+                    for (WatchEvent<?> event: key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else {
+                            String file = event.context().toString();
+                            if (file.endsWith(".json")) {
+                                changed.add(file.substring(0, file.length() - ".json".length()));
+                            }
+                        }
+                    }
+                    key.reset();
+                    key = watchService.poll(50, TimeUnit.MILLISECONDS);
+                } while (key != null);
+                filesChanged(changed, overflow);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopWatching closed the service
+        }
+    }
+
+    private void filesChanged(Set<String> fileNames, boolean all) {
+        listing = null;  // list again now, instead of updating from events
+        if (all) {
+            serializer.evictAll();
+        }
+        for (String fileName: fileNames) {
+            misses.remove(fileName);
+            serializer.evict(fileDirectoryPath, fileName);
+        }
+        for (Map.Entry<String, Loaded> e: loaded.entrySet()) {
+            String name = e.getKey();
+            Loaded l = e.getValue();
+            if (all || fileNames.contains(fileNamePart(name)) || !Collections.disjoint(fileNames, l.ancestors)) {
+                try {
+                    reload(name);
+                } catch (RuntimeException ex) {
+                    logger.error("could not reload file-based description: " + name + ".  Exception: " + ex);
+                }
+            }
+        }
+    }
+
+    private void reload(String name) {
+        Loaded current = loaded.get(name);
+        if (current != null) {
+            current.checkedUntil = 0;
+        }
+        refresh(name, System.currentTimeMillis(), true);
+    }
+
+    /**
+     * Read and activate every description file in the directory now, so that
+     * lookups by name do not pay for reading them later.
+     * Parents shared by many files are parsed once.
+     * @param executor runs files in parallel, or null to read them one at a time
+     * @return time taken for each file and the files that could not be read or activated
+     */
+    public PreloadReport preload(Executor executor) {
+        long start = System.nanoTime();
+        listing = null;  // the directory may have changed since last listed
+        Set<String> names = listing(System.currentTimeMillis()).names;
+        PreloadReport report = new PreloadReport(names.size());
+        List<CompletableFuture<Void>> reads = new ArrayList<>();
+        for (String name: names) {
+            Runnable read = () -> preload(name, report);
+            if (executor == null) {
+                read.run();
+            } else {
+                reads.add(CompletableFuture.runAsync(read, executor));
+            }
+        }
+        CompletableFuture.allOf(reads.toArray(new CompletableFuture[0])).join();
+        report.setElapsedNanos(System.nanoTime() - start);
+        logger.info(report + " from " + fileDirectoryPath);
+        return report;
+    }
+
+    private void preload(String name, PreloadReport report) {
+        long start = System.nanoTime();
+        try {
+            refresh(name, System.currentTimeMillis(), false);
+            Loaded l = loaded.get(name);
+            if (l == null) {
+                report.failed(name, new FileNotFoundException(fileDirectoryPath + name + ".json"));
+            } else if (l.impl == null) {
+                report.failed(name, l.failure);
+            }
+        } catch (RuntimeException e) {  // e.g. syntax error in the file
+            logger.error("could not preload file-based description: " + name + ".  Exception: " + e);
+            report.failed(name, e);
+        }
+        report.timed(name, System.nanoTime() - start);
+    }
+
     public void advertise(Description impl) {
         cacheRepository.advertise(impl);
+        invalidatePlans(impl.type());
     }
 
     @Override
     protected Collection<Description> implementationsByName(String name) {
-        Collection<Description> matches = cacheRepository.implementationsByName(name);
-        try {
-            Description d = serializer.descriptionFromJsonFile( fileDirectoryPath, fileNamePart(name) );
+        long now = System.currentTimeMillis();
+        Loaded current = loaded.get(name);
+        if (current == null || current.checkedUntil <= now) {
+            refresh(name, now, false);
+        }
+        return new ArrayList<>(cacheRepository.implementationsByName(name));
+    }
+
+    /**
+     * make the cached implementation for name agree with its file: read the
+     * file only if it is new or its modification time has changed.
+     * One thread at a time refreshes a name and the others wait for it, so a
+     * file is activated once however many lookups miss it at the same time.
+     * The file is parsed under the lock for name, but activated without it,
+     * as activating may look up other names that depend on this one.
+     */
+    private void refresh(String name, long now, boolean changed) {
+        while (true) {
+            Refresh mine = new Refresh();
+            Refresh inFlight = refreshing.putIfAbsent(name, mine);
+            if (inFlight == null) {
+                try {
+                    load(name, now, changed);
+                } finally {
+                    refreshing.remove(name, mine);
+                    mine.done.complete(null);
+                }
+                return;
+            }
+            if (inFlight.owner == Thread.currentThread()) {
+                return;  // activating name looked itself up: answer from the cache
+            }
+            inFlight.done.join();
+            if (!changed) {
+                return;  // the refresh just finished read the file as it is now
+            }
+        }
+    }
+
+    private void load(String name, long now, boolean changed) {
+        String fileName = fileNamePart(name);
+        Loaded current;
+        long modified;
+        Description d;
+        synchronized (loadLock(name)) {
+            current = loaded.get(name);
+            if (current != null && current.checkedUntil > now) {
+                return;  // another thread just refreshed it
+            }
+            File file = new File(fileDirectoryPath, fileName + ".json");
+            if (!fileExists(fileName)) {
+                forget(name, current);
+                return;
+            }
+            modified = file.lastModified();
+            if (current != null && current.modified == modified && !changed) {
+                current.checkedUntil = trustUntil(now);
+                return;
+            }
             try {
-                d.setName(name);  // ensure name is part of description so advertise does not map by type
-                d.activate(this);  // don't bother to return unless it is full implementation
-                cacheRepository.advertise( d );  // cache named instance to avoid rereading the file
-                matches.add( d );
-            } catch (NoImplementationFound e) {
-                logger.error("could not activate file-based description: " + name + ".  Exception: " + e);
+                d = serializer.descriptionFromJsonFile( fileDirectoryPath, fileName );
+            } catch (FileNotFoundException e2) {
+                recordMiss(fileName, now);  // removed since last listing
+                forget(name, current);
+                return;
             }
-        } catch (FileNotFoundException e2) {
-            logger.info("file implementation not found for: " + fileDirectoryPath + fileNamePart(name));
+            d.setName(name);  // ensure name is part of description so advertise does not map by type
         }
-        return matches;
+
+        NoImplementationFound failure = null;
+        try {
+            d.activate(this);  // don't bother to return unless it is full implementation
+        } catch (NoImplementationFound e) {
+            logger.error("could not activate file-based description: " + name + ".  Exception: " + e);
+            d = null;  // remember the failure until the file changes
+            failure = e;
+        }
+
+        synchronized (loadLock(name)) {
+            Loaded latest = loaded.get(name);
+            if (latest != current && latest != null && latest.modified >= modified) {
+                if (d != null) {
+                    recycleUnused(d, name);
+                }
+                return;  // a newer version of this file was published while we activated
+            }
+            cacheRepository.replace(latest == null ? null : latest.impl, d);  // never more than one per file
+            loaded.put(name, new Loaded(d, failure, modified, ancestors(fileName), trustUntil(now)));
+        }
+    }
+
+    private static void recycleUnused(Description d, String name) {
+        try {
+            d.recycle();
+        } catch (NoImplementationFound | RuntimeException e) {
+            logger.warn("could not recycle unused file-based description: " + name + ".  Exception: " + e);
+        }
+    }
+
+    private long trustUntil(long now) {
+        return watching ? Long.MAX_VALUE : now + cacheTimeToLive;
+    }
+
+    private Set<String> ancestors(String fileName) {
+        if (!watching) {
+            return Collections.emptySet();
+        }
+        try {
+            return serializer.ancestors(fileDirectoryPath, fileName);
+        } catch (FileNotFoundException e) {
+            return Collections.emptySet();  // a missing parent is reported when the file itself is read
+        }
+    }
+
+    private void forget(String name, Loaded current) {
+        if (current != null) {
+            cacheRepository.replace(current.impl, null);
+            loaded.remove(name);
+        }
+    }
+
+    private Object loadLock(String name) {
+        return loadLocks.computeIfAbsent(name, n -> new Object());
+    }
+
+    private boolean fileExists(String fileName) {
+        long now = System.currentTimeMillis();
+        Long expiry = misses.get(fileName);
+        if (expiry != null && (expiry > now || watching)) {
+            return false;
+        }
+        if (!listing(now).names.contains(fileName)) {
+            recordMiss(fileName, now);
+            return false;
+        }
+        misses.remove(fileName);
+        return true;
+    }
+
+    private void recordMiss(String fileName, long now) {
+        misses.put(fileName, now + cacheTimeToLive);
+        logger.debug("file implementation not found for: " + fileDirectoryPath + fileName);
+    }
+
+    private Listing listing(long now) {
+        Listing current = listing;
+        if (current == null || (current.expiry <= now && !watching)) {
+            Set<String> names = new HashSet<>();
+            String[] files = new File(fileDirectoryPath).list();
+            if (files != null) {
+                for (String file: files) {
+                    if (file.endsWith(".json")) {
+                        names.add(file.substring(0, file.length() - ".json".length()));
+                    }
+                }
+            }
+            current = new Listing(names, now + cacheTimeToLive);
+            listing = current;
+        }
+        return current;
     }
 
     private String fileNamePart(String name) {
@@ -66,4 +437,9 @@ public class FileBasedRepository extends AbstractRepository {
     protected Collection<Description> implementationsByType(String type) {
         return cacheRepository.implementationsByType(type);
     }
+
+    @Override
+    protected Collection<Description> candidatesFor(Description goal) {
+        return cacheRepository.candidatesFor(goal);
+    }
 }
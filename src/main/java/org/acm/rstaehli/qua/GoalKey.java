@@ -0,0 +1,74 @@
+package org.acm.rstaehli.qua;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Value snapshot of a goal's type and properties, usable as a map key.
+ *
+ * Only goals whose property values are plain values (String, Number, Boolean)
+ * have a key; a goal with nested Descriptions or lists has none, because those
+ * values may change after the key is made.
+ */
+final class GoalKey {
+
+    private final String type;
+    private final Map<String, Object> properties;
+    private final int hash;
+
+    private GoalKey(String type, Map<String, Object> properties) {
+        this.type = type;
+        this.properties = properties;
+        this.hash = 31 * type.hashCode() + properties.hashCode();
+    }
+
+    /**
+     * @param goal typed description
+     * @return key for goal, or null if goal cannot be keyed by value
+     */
+    static GoalKey of(Description goal) {
+        if (!goal.isTyped()) {
+            return null;
+        }
+        Map<String, Object> properties = goal.properties();
+        Map<String, Object> snapshot = new HashMap<>();
+        if (properties != null) {
+            for (Map.Entry<String, Object> e: properties.entrySet()) {
+                Object value = e.getValue();
+                if (!plain(value)) {
+                    return null;
+                }
+                snapshot.put(e.getKey(), value);
+            }
+        }
+        return new GoalKey(goal.type(), snapshot);
+    }
+
+    /**
+     * @return true if value cannot change: a String, Number or Boolean
+     */
+    static boolean plain(Object value) {
+        return value instanceof String || value instanceof Number || value instanceof Boolean;
+    }
+
+    String type() {
+        return type;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof GoalKey)) {
+            return false;
+        }
+        GoalKey other = (GoalKey) o;
+        return hash == other.hash && type.equals(other.type) && properties.equals(other.properties);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
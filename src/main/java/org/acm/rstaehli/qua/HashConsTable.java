@@ -0,0 +1,54 @@
+package org.acm.rstaehli.qua;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One shared instance for each structurally equal Description.
+ *
+ * Descriptions read from many files often repeat the same nested dependency
+ * or builder description.  Interning them replaces each repeat with the first
+ * instance seen, so the catalog holds it once.  Interned descriptions are
+ * read-only templates: each description that refers to one plans and builds
+ * its own copy, so the shared instance and its hash never change.  Do not set
+ * properties or dependencies on a description after interning it.
+ */
+public class HashConsTable {
+
+    private final Map<Description, Description> canonical = new ConcurrentHashMap<>();
+
+    /**
+     * @return the canonical instance equal to d, after interning its nested descriptions
+     */
+    public Description intern(Description d) {
+        if (d == null) {
+            return null;
+        }
+        internChildren(d);
+        Description existing = canonical.putIfAbsent(d, d);
+        Description shared = existing == null ? d : existing;
+        shared.markTemplate();
+        return shared;
+    }
+
+    /**
+     * Replace the descriptions nested in d's properties, dependencies and builder
+     * with their canonical instances.  d itself is not added to the table.
+     * @return d
+     */
+    public Description internChildren(Description d) {
+        d.replaceChildren(this::intern);
+        return d;
+    }
+
+    /**
+     * @return number of distinct descriptions interned
+     */
+    public int size() {
+        return canonical.size();
+    }
+
+    public void clear() {
+        canonical.clear();
+    }
+}
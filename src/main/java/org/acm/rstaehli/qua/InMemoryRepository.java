@@ -1,20 +1,33 @@
 package org.acm.rstaehli.qua;
 
 import org.acm.rstaehli.qua.exceptions.NoImplementationFound;
+import org.apache.log4j.Logger;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.acm.rstaehli.qua.Behavior.MATCH_ANY;
 
+/**
+ * Repository of advertised implementations held in memory.
+ *
+ * Safe for concurrent advertise and lookup: every type or name maps to an
+ * immutable snapshot that advertise replaces atomically (copy-on-write), so
+ * lookups never lock and never see a partly updated list.
+ */
 public class InMemoryRepository extends AbstractRepository {
 
-    private Map<String, List<Description>> typeMap;  // support lookup by type
+    private static final Logger logger = Logger.getLogger(InMemoryRepository.class);
+
+    private Map<String, PropertyIndex> typeMap;  // support lookup by type and property values
     private Map<String, List<Description>> nameMap;  // lookup by name
 
     public InMemoryRepository() {
-        typeMap = new HashMap<>();
-        nameMap = new HashMap<>();
+        typeMap = new ConcurrentHashMap<>();
+        nameMap = new ConcurrentHashMap<>();
     }
 
     /**
@@ -28,10 +41,74 @@ public class InMemoryRepository extends AbstractRepository {
         if (isNamed(impl)) {
             addMapping(impl.name(), impl, nameMap);  // singletons accessed by name
         } else {
-            addMapping(impl.type(), impl, typeMap);  // generic implementations by type
+            addTypeMapping(impl.type(), impl);  // generic implementations by type
+            invalidatePlans(impl.type());
         }
     }
 
+    private void addTypeMapping(String type, Description impl) {
+        if (type == null) {
+            return;
+        }
+        typeMap.compute(type, (t, index) -> (index == null ? PropertyIndex.EMPTY : index).plus(impl));
+    }
+
+    /**
+     * atomically swap an advertised implementation for another.
+     * @param old implementation to withdraw, or null to only advertise replacement
+     * @param replacement implementation to advertise, or null to only withdraw old
+     */
+    public void replace(Description old, Description replacement) {
+        if (old == null) {
+            if (replacement != null) {
+                advertise(replacement);
+            }
+            return;
+        }
+        if (replacement != null && !replacement.isPlanned()) {
+            throw new IllegalStateException("attempt to advertise description with no implementation");
+        }
+        if (isNamed(old) && replacement != null && isNamed(replacement) && old.name().equals(replacement.name())) {
+            nameMap.computeIfPresent(old.name(), (name, list) -> {
+                List<Description> copy = new ArrayList<>(list);
+                copy.replaceAll(d -> advertisedAs(d, old) ? replacement : d);
+                return Collections.unmodifiableList(copy);
+            });
+            return;
+        }
+        withdraw(old);
+        if (replacement != null) {
+            advertise(replacement);
+        }
+    }
+
+    /**
+     * stop offering an advertised implementation for planning.
+     * @param impl the same object that was advertised
+     */
+    public void withdraw(Description impl) {
+        if (isNamed(impl)) {
+            nameMap.computeIfPresent(impl.name(), (name, list) -> {
+                List<Description> copy = new ArrayList<>(list);
+                copy.removeIf(d -> advertisedAs(d, impl));
+                return copy.isEmpty() ? null : Collections.unmodifiableList(copy);
+            });
+        } else if (impl.type() != null) {
+            typeMap.computeIfPresent(impl.type(), (type, index) -> {
+                PropertyIndex rest = index.minus(impl);
+                return rest.isEmpty() ? null : rest;
+            });
+            invalidatePlans(impl.type());
+        }
+    }
+
+    /**
+     * @return true if d is impl, or the equal description stored when impl was advertised again and ignored
+     */
+    private static boolean advertisedAs(Description d, Description impl) {
+        return d == impl || d.equals(impl);
+    }
+
     private boolean isNamed(Description impl) {
         return impl.name() != null && !impl.name().equals(MATCH_ANY);
     }
@@ -40,18 +117,58 @@ public class InMemoryRepository extends AbstractRepository {
         if (key == null) {
             return;
         }
-        // support lookup of implementations by type
-        List<Description> list = map.get(key);
-        if (list == null) {
-            list = new ArrayList();
-            map.put(key, list);
-        }
-        for (Description d: list) {
-            if (d.equals(value)) {
-                // TODO: add logging to warn value is already advertised
+        // replace the list rather than modify it, so readers may hold it without locking
+        map.compute(key, (k, list) -> {
+            if (list == null) {
+                return Collections.singletonList(value);
+            }
+            for (Description d: list) {
+                if (d.equals(value)) {
+                    logger.warn("already advertised, ignored: " + key);
+                    return list;
+                }
             }
+            List<Description> copy = new ArrayList<>(list.size() + 1);
+            copy.addAll(list);
+            copy.add(value);
+            return Collections.unmodifiableList(copy);
+        });
+    }
+
+    /**
+     * @return every advertised implementation, each type and name in advertised order
+     */
+    List<Description> advertised() {
+        List<Description> all = new ArrayList<>();
+        for (PropertyIndex index: typeMap.values()) {
+            all.addAll(index.all());
+        }
+        for (List<Description> named: nameMap.values()) {
+            all.addAll(named);
         }
-        list.add(value);  // TODO: make this modification thread safe
+        return all;
+    }
+
+    /**
+     * write all advertised implementations to a binary snapshot file.
+     * @param file replaced atomically
+     * @return number of implementations written; see RepositorySnapshot for those left out
+     */
+    public int saveSnapshot(Path file) throws IOException {
+        return RepositorySnapshot.write(advertised(), file);
+    }
+
+    /**
+     * advertise every implementation in a snapshot written by saveSnapshot.
+     * @return number of implementations advertised
+     * @throws IOException if file cannot be read or is not a snapshot of this version
+     */
+    public int loadSnapshot(Path file) throws IOException {
+        RepositorySnapshot snapshot = RepositorySnapshot.open(file);
+        for (int i = 0; i < snapshot.size(); i++) {
+            advertise(snapshot.decode(i));
+        }
+        return snapshot.size();
     }
 
     @Override
@@ -65,10 +182,19 @@ public class InMemoryRepository extends AbstractRepository {
 
     @Override
     protected Collection<Description> implementationsByType(String type) {
-        List<Description> matches = typeMap.get(type);
-        if (matches == null || matches.size() < 1) {
+        PropertyIndex index = typeMap.get(type);
+        if (index == null || index.isEmpty()) {
             return new ArrayList<>();
         }
-        return matches;
+        return index.all();
+    }
+
+    @Override
+    protected Collection<Description> candidatesFor(Description goal) {
+        PropertyIndex index = typeMap.get(goal.type());
+        if (index == null) {
+            return new ArrayList<>();
+        }
+        return index.candidatesFor(goal);
     }
 }
@@ -0,0 +1,173 @@
+package org.acm.rstaehli.qua;
+
+import org.acm.rstaehli.qua.exceptions.NoImplementationFound;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+
+/**
+ * Assembled services kept for reuse, so activating an equivalent Description
+ * only starts a warm instance instead of assembling a new one.
+ *
+ * A released service is stopped, with the dependencies built for it, and
+ * pooled under its implementation and specialized type and properties.  Each type has a bound on the number of
+ * pooled services; a service released beyond it, or one whose properties hold
+ * nested descriptions and so cannot be keyed, is recycled instead.
+ */
+public class InstancePool {
+
+    private static final Logger logger = Logger.getLogger(InstancePool.class);
+
+    private final int maxPerType;
+    private final Map<String, Integer> limits = new HashMap<>();  // per type, overriding maxPerType
+    private final Map<Key, Deque<Description>> pooled = new HashMap<>();
+    private final Map<String, Integer> pooledByType = new HashMap<>();
+    private long hits;
+    private long misses;
+
+    /**
+     * Same implementation and specialized behavior: services built the same way.
+     */
+    private static class Key {
+        final Object implementation;  // Description.implementationKey, equal after re-advertising or reloading
+        final GoalKey behavior;
+
+        Key(Object implementation, GoalKey behavior) {
+            this.implementation = implementation;
+            this.behavior = behavior;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).implementation.equals(implementation)
+                    && ((Key) o).behavior.equals(behavior);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * implementation.hashCode() + behavior.hashCode();
+        }
+    }
+
+    /**
+     * @param maxPerType most services of one type kept at a time
+     */
+    public InstancePool(int maxPerType) {
+        this.maxPerType = maxPerType;
+    }
+
+    /**
+     * @param max most services of type kept at a time, e.g. 0 for services that must not be reused
+     */
+    public synchronized InstancePool limit(String type, int max) {
+        limits.put(type, max);
+        return this;
+    }
+
+    private static Key keyOf(Description d) {
+        GoalKey behavior = GoalKey.of(d);
+        return behavior == null ? null : new Key(d.implementationKey(), behavior);
+    }
+
+    /**
+     * plan goal, then start a pooled service built the same way, or activate goal if there is none.
+     * @return active service for goal, which is a pooled instance rather than goal when one was taken
+     */
+    public Description activate(Description goal, Repository repo) throws NoImplementationFound {
+        goal.plan(repo);
+        Description warm = take(keyOf(goal));
+        if (warm != null) {
+            return warm.activate(repo);  // assembled, so it and its dependencies are only started
+        }
+        if (!goal.isAssembled()) {
+            goal.assemble(repo);
+        }
+        return goal.activate(repo);
+    }
+
+    private synchronized Description take(Key key) {
+        Deque<Description> services = key == null ? null : pooled.get(key);
+        if (services == null || services.isEmpty()) {
+            misses++;
+            return null;
+        }
+        hits++;
+        pooledByType.merge(key.behavior.type(), -1, Integer::sum);
+        Description service = services.pop();  // most recently released, likely warmest
+        if (services.isEmpty()) {
+            pooled.remove(key);  // e.g. its implementation was since replaced, so the key may never recur
+        }
+        return service;
+    }
+
+    /**
+     * stop service and keep it for a later activate, or recycle it if the pool has no room.
+     */
+    public void release(Description service) throws NoImplementationFound {
+        if (!service.isAssembled()) {
+            return;  // nothing built to reuse
+        }
+        service.deactivate();
+        if (!offer(service)) {
+            service.recycle();
+        }
+    }
+
+    private synchronized boolean offer(Description service) {
+        Key key = keyOf(service);
+        if (key == null) {
+            return false;
+        }
+        String type = key.behavior.type();
+        int count = pooledByType.getOrDefault(type, 0);
+        if (count >= limits.getOrDefault(type, maxPerType)) {
+            return false;
+        }
+        pooledByType.put(type, count + 1);
+        pooled.computeIfAbsent(key, k -> new ArrayDeque<>()).push(service);
+        return true;
+    }
+
+    /**
+     * recycle every pooled service.
+     */
+    public void clear() {
+        List<Description> services = new ArrayList<>();
+        synchronized (this) {
+            for (Deque<Description> d: pooled.values()) {
+                services.addAll(d);
+            }
+            pooled.clear();
+            pooledByType.clear();
+        }
+        for (Description service: services) {
+            try {
+                service.recycle();
+            } catch (NoImplementationFound | RuntimeException e) {
+                logger.warn("could not recycle pooled service of type: " + service.type() + ".  Exception: " + e);
+            }
+        }
+    }
+
+    /**
+     * @return number of services pooled now
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (int count: pooledByType.values()) {
+            size += count;
+        }
+        return size;
+    }
+
+    /**
+     * @return number of activations that took a pooled service
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+}
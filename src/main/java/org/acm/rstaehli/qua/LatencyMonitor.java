@@ -0,0 +1,111 @@
+package org.acm.rstaehli.qua;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Observed durations of each advertised implementation, as error estimates for QualityRanking.
+ *
+ * Builders wrapped by timed() record how long assemble and start take, and
+ * services report the latency of their calls with record().  Each is kept per
+ * implementation, compared by structure, in a histogram that forgets old
+ * observations, so a repository ranking with this monitor moves plans toward
+ * whichever implementation is currently fastest.  Estimates are the
+ * configured quantile, in milliseconds like allowances written by hand.
+ */
+public class LatencyMonitor implements ErrorEstimates {
+
+    public static final String ASSEMBLE = "assemble";
+    public static final String START = "start";
+    public static final String LATENCY = "latency";  // of calls on the service
+
+    private final long halfLifeNanos;
+    private final double quantile;
+    private final LongSupplier clock;
+    private final Map<Object, Map<String, DecayingHistogram>> observed =
+            new ConcurrentHashMap<>();  // implementationKey -> histograms
+
+    /**
+     * observations lose half their weight every minute; estimates are the 90th percentile.
+     */
+    public LatencyMonitor() {
+        this(TimeUnit.MINUTES.toNanos(1), 0.9);
+    }
+
+    /**
+     * @param halfLifeNanos time after which an observation counts half
+     * @param quantile estimated, e.g. 0.5 for the median
+     */
+    public LatencyMonitor(long halfLifeNanos, double quantile) {
+        this(halfLifeNanos, quantile, System::nanoTime);
+    }
+
+    LatencyMonitor(long halfLifeNanos, double quantile, LongSupplier clock) {
+        this.halfLifeNanos = halfLifeNanos;
+        this.quantile = quantile;
+        this.clock = clock;
+    }
+
+    /**
+     * @param service planned from an advertised implementation, or that implementation
+     * @param dimension e.g. LATENCY
+     * @param nanos observed duration
+     */
+    public void record(Description service, String dimension, long nanos) {
+        long now = clock.getAsLong();
+        observed.computeIfAbsent(service.implementationKey(), impl -> new ConcurrentHashMap<>())
+                .computeIfAbsent(dimension, name -> new DecayingHistogram(halfLifeNanos, now))
+                .record(nanos, now);
+    }
+
+    @Override
+    public Double estimate(Description impl, String dimension) {
+        Map<String, DecayingHistogram> histograms = observed.get(impl.implementationKey());
+        DecayingHistogram histogram = histograms == null ? null : histograms.get(dimension);
+        if (histogram == null) {
+            return null;
+        }
+        double nanos = histogram.quantile(quantile);
+        return nanos < 0 ? null : nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * drop all observations of impl, e.g. when it is withdrawn from the repository.
+     */
+    public void forget(Description impl) {
+        observed.remove(impl.implementationKey());
+    }
+
+    /**
+     * @return builder that records how long builder takes to assemble and start each service
+     */
+    public Builder timed(Builder builder) {
+        return new Builder() {
+            @Override
+            public void assemble(Description impl) {
+                long started = System.nanoTime();
+                builder.assemble(impl);
+                record(impl, ASSEMBLE, System.nanoTime() - started);
+            }
+
+            @Override
+            public void start(Description impl) {
+                long started = System.nanoTime();
+                builder.start(impl);
+                record(impl, START, System.nanoTime() - started);
+            }
+
+            @Override
+            public void stop(Description impl) {
+                builder.stop(impl);
+            }
+
+            @Override
+            public void recycle(Description impl) {
+                builder.recycle(impl);
+            }
+        };
+    }
+}
@@ -0,0 +1,126 @@
+package org.acm.rstaehli.qua;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Repository read from a snapshot file written by InMemoryRepository.saveSnapshot.
+ *
+ * The file is memory-mapped and only the entry numbers for each type and name
+ * are kept on heap.  An entry is decoded when a lookup returns it, and the
+ * most recently returned entries are kept decoded in a small cache.  Matching
+ * skips entries whose string property values differ from the goal's before
+ * decoding them.  An entry decoded again after eviction is a new Description
+ * but has the same implementationKey, so observations and pooled services
+ * recorded for it still apply.
+ * Implementations advertised after opening are held in memory, after those
+ * from the file.
+ */
+public class MappedRepository extends AbstractRepository {
+
+    private final RepositorySnapshot snapshot;
+    private final Map<String, int[]> typeEntries;  // type -> entries in file order
+    private final Map<String, int[]> nameEntries;  // name -> entries in file order
+    private final Map<Integer, Description> decoded;  // least recently used entries evicted first
+    private final InMemoryRepository advertised = new InMemoryRepository();
+    private long decodes;
+
+    /**
+     * @param file snapshot written by InMemoryRepository.saveSnapshot
+     * @param cacheSize most decoded implementations kept on heap
+     * @throws IOException if file cannot be read or is not a snapshot of this version
+     */
+    public MappedRepository(Path file, int cacheSize) throws IOException {
+        snapshot = RepositorySnapshot.open(file);
+        typeEntries = new HashMap<>();
+        nameEntries = new HashMap<>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            Map<String, int[]> entries = snapshot.isNamed(i) ? nameEntries : typeEntries;
+            int[] old = entries.getOrDefault(snapshot.key(i), new int[0]);
+            int[] grown = Arrays.copyOf(old, old.length + 1);
+            grown[old.length] = i;
+            entries.put(snapshot.key(i), grown);
+        }
+        decoded = new LinkedHashMap<Integer, Description>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Description> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    @Override
+    public void advertise(Description impl) {
+        advertised.advertise(impl);
+        invalidatePlans(impl.type());
+    }
+
+    @Override
+    protected Collection<Description> implementationsByName(String name) {
+        return lookup(nameEntries.get(name), advertised.implementationsByName(name));
+    }
+
+    @Override
+    protected Collection<Description> implementationsByType(String type) {
+        return lookup(typeEntries.get(type), advertised.implementationsByType(type));
+    }
+
+    /**
+     * Like implementationsByType, but without entries whose string property values
+     * cannot match goal, and each entry is decoded only when matching reaches it.
+     */
+    @Override
+    protected Collection<Description> candidatesFor(Description goal) {
+        int[] entries = Arrays.stream(typeEntries.getOrDefault(goal.type(), new int[0]))
+                .filter(entry -> snapshot.mayMatch(entry, goal.properties()))
+                .toArray();
+        List<Description> more = new ArrayList<>(advertised.candidatesFor(goal));
+        return new AbstractList<Description>() {
+            @Override
+            public Description get(int i) {
+                return i < entries.length ? decoded(entries[i]) : more.get(i - entries.length);
+            }
+
+            @Override
+            public int size() {
+                return entries.length + more.size();
+            }
+        };
+    }
+
+    private List<Description> lookup(int[] entries, Collection<Description> more) {
+        List<Description> found = new ArrayList<>();
+        if (entries != null) {
+            for (int entry: entries) {
+                found.add(decoded(entry));
+            }
+        }
+        found.addAll(more);
+        return found;
+    }
+
+    private synchronized Description decoded(int entry) {
+        Description d = decoded.get(entry);
+        if (d == null) {
+            d = snapshot.decode(entry);
+            decoded.put(entry, d);
+            decodes++;
+        }
+        return d;
+    }
+
+    /**
+     * @return number of implementations in the file
+     */
+    public int size() {
+        return snapshot.size();
+    }
+
+    /**
+     * @return number of implementations decoded so far, including those decoded again after eviction
+     */
+    public synchronized long decodes() {
+        return decodes;
+    }
+}
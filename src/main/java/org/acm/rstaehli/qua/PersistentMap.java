@@ -0,0 +1,364 @@
+package org.acm.rstaehli.qua;
+
+import java.util.*;
+
+/**
+ * Immutable map that shares structure with the maps it was derived from
+ * (a hash array mapped trie).
+ *
+ * plus and minus return a new map and copy only the path to the changed key,
+ * at most seven small arrays, so specializing or merging properties costs
+ * O(changed keys) instead of a copy of the whole map.  A map can be shared
+ * between descriptions and threads without defensive copies.
+ * The Map mutators throw UnsupportedOperationException.  Keys may not be null.
+ */
+public final class PersistentMap<K, V> extends AbstractMap<K, V> {
+
+    private static final int BITS = 5;  // of the hash used at each level
+    private static final int MAX_DEPTH = 8;  // 7 levels of 5 bits, then collisions
+
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(BitmapNode.EMPTY, 0);
+    private static final Object NOT_FOUND = new Object();
+
+    private final Node root;
+    private final int size;
+    private Set<Entry<K, V>> entrySet;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    /**
+     * @return map itself if already persistent, else a persistent copy
+     */
+    public static <K, V> PersistentMap<K, V> copyOf(Map<? extends K, ? extends V> map) {
+        if (map instanceof PersistentMap) {
+            return (PersistentMap<K, V>) map;
+        }
+        PersistentMap<K, V> copy = empty();
+        for (Entry<? extends K, ? extends V> e: map.entrySet()) {
+            copy = copy.plus(e.getKey(), e.getValue());
+        }
+        return copy;
+    }
+
+    /**
+     * @return a map with key mapped to value, or this map if it already is
+     */
+    public PersistentMap<K, V> plus(K key, V value) {
+        boolean[] added = new boolean[1];
+        Node newRoot = root.assoc(0, hash(Objects.requireNonNull(key)), key, value, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * @return a map without key, or this map if it has no such key
+     */
+    public PersistentMap<K, V> minus(Object key) {
+        if (key == null) {
+            return this;
+        }
+        Node newRoot = root.without(0, hash(key), key);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentMap<>(newRoot == null ? BitmapNode.EMPTY : newRoot, size - 1);
+    }
+
+    /**
+     * @return a map with every entry of source whose key is not already in this map
+     */
+    public PersistentMap<K, V> plusMissing(Map<? extends K, ? extends V> source) {
+        if (source == null || source.isEmpty()) {
+            return this;
+        }
+        if (size == 0) {
+            return copyOf(source);
+        }
+        PersistentMap<K, V> merged = this;
+        for (Entry<? extends K, ? extends V> e: source.entrySet()) {
+            if (!containsKey(e.getKey())) {
+                merged = merged.plus(e.getKey(), e.getValue());
+            }
+        }
+        return merged;
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & 31);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key != null && root.find(0, hash(key), key) != NOT_FOUND;
+    }
+
+    @Override
+    public V get(Object key) {
+        if (key == null) {
+            return null;
+        }
+        Object value = root.find(0, hash(key), key);
+        return value == NOT_FOUND ? null : (V) value;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        Set<Entry<K, V>> entries = entrySet;
+        if (entries == null) {
+            entries = new AbstractSet<Entry<K, V>>() {
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    return new EntryIterator<>(root);
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+            entrySet = entries;
+        }
+        return entries;
+    }
+
+    /**
+     * Keys and values in pairs; a null key marks a pair whose value is a child Node.
+     */
+    private abstract static class Node {
+        final Object[] array;
+
+        Node(Object[] array) {
+            this.array = array;
+        }
+
+        abstract Object find(int shift, int hash, Object key);
+
+        abstract Node assoc(int shift, int hash, Object key, Object value, boolean[] added);
+
+        abstract Node without(int shift, int hash, Object key);  // null when no entries remain
+    }
+
+    private static final class BitmapNode extends Node {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;  // which of 32 hash slices are present
+
+        BitmapNode(int bitmap, Object[] array) {
+            super(array);
+            this.bitmap = bitmap;
+        }
+
+        private int index(int bit) {
+            return 2 * Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return NOT_FOUND;
+            }
+            int i = index(bit);
+            Object k = array[i];
+            if (k == null) {
+                return ((Node) array[i + 1]).find(shift + BITS, hash, key);
+            }
+            return key.equals(k) ? array[i + 1] : NOT_FOUND;
+        }
+
+        @Override
+        Node assoc(int shift, int hash, Object key, Object value, boolean[] added) {
+            int bit = bit(hash, shift);
+            int i = index(bit);
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                Object[] grown = new Object[array.length + 2];
+                System.arraycopy(array, 0, grown, 0, i);
+                grown[i] = key;
+                grown[i + 1] = value;
+                System.arraycopy(array, i, grown, i + 2, array.length - i);
+                return new BitmapNode(bitmap | bit, grown);
+            }
+            Object k = array[i];
+            Object v = array[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).assoc(shift + BITS, hash, key, value, added);
+                return child == v ? this : new BitmapNode(bitmap, with(array, i + 1, child));
+            }
+            if (key.equals(k)) {
+                return v == value ? this : new BitmapNode(bitmap, with(array, i + 1, value));
+            }
+            added[0] = true;
+            Object[] changed = with(array, i + 1, pair(shift + BITS, k, v, hash, key, value));
+            changed[i] = null;
+            return new BitmapNode(bitmap, changed);
+        }
+
+        @Override
+        Node without(int shift, int hash, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int i = index(bit);
+            Object k = array[i];
+            if (k == null) {
+                Node child = (Node) array[i + 1];
+                Node newChild = child.without(shift + BITS, hash, key);
+                if (newChild == child) {
+                    return this;
+                }
+                if (newChild != null) {
+                    return new BitmapNode(bitmap, with(array, i + 1, newChild));
+                }
+            } else if (!key.equals(k)) {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            return new BitmapNode(bitmap ^ bit, shrunk);
+        }
+
+        private static Node pair(int shift, Object k1, Object v1, int hash2, Object k2, Object v2) {
+            int hash1 = hash(k1);
+            if (hash1 == hash2) {
+                return new CollisionNode(hash1, new Object[] {k1, v1, k2, v2});
+            }
+            boolean[] ignored = new boolean[1];
+            return EMPTY.assoc(shift, hash1, k1, v1, ignored).assoc(shift, hash2, k2, v2, ignored);
+        }
+    }
+
+    private static final class CollisionNode extends Node {
+        final int hash;  // shared by every key
+
+        CollisionNode(int hash, Object[] array) {
+            super(array);
+            this.hash = hash;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int i = hash == this.hash ? indexOf(key) : -1;
+            return i < 0 ? NOT_FOUND : array[i + 1];
+        }
+
+        @Override
+        Node assoc(int shift, int hash, Object key, Object value, boolean[] added) {
+            if (hash != this.hash) {  // push this node one level down
+                Node parent = new BitmapNode(bit(this.hash, shift), new Object[] {null, this});
+                return parent.assoc(shift, hash, key, value, added);
+            }
+            int i = indexOf(key);
+            if (i >= 0) {
+                return array[i + 1] == value ? this : new CollisionNode(hash, with(array, i + 1, value));
+            }
+            added[0] = true;
+            Object[] grown = Arrays.copyOf(array, array.length + 2);
+            grown[array.length] = key;
+            grown[array.length + 1] = value;
+            return new CollisionNode(hash, grown);
+        }
+
+        @Override
+        Node without(int shift, int hash, Object key) {
+            int i = hash == this.hash ? indexOf(key) : -1;
+            if (i < 0) {
+                return this;
+            }
+            if (array.length == 2) {
+                return null;
+            }
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            return new CollisionNode(hash, shrunk);
+        }
+    }
+
+    private static Object[] with(Object[] array, int i, Object value) {
+        Object[] copy = array.clone();
+        copy[i] = value;
+        return copy;
+    }
+
+    private static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+        private final Object[][] arrays = new Object[MAX_DEPTH][];
+        private final int[] positions = new int[MAX_DEPTH];
+        private int depth;
+        private Entry<K, V> next;
+
+        EntryIterator(Node root) {
+            arrays[0] = root.array;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                Object[] array = arrays[depth];
+                int p = positions[depth];
+                if (p >= array.length) {
+                    depth--;
+                    continue;
+                }
+                positions[depth] = p + 2;
+                if (array[p] == null) {
+                    depth++;
+                    arrays[depth] = ((Node) array[p + 1]).array;
+                    positions[depth] = 0;
+                } else {
+                    next = new SimpleImmutableEntry<>((K) array[p], (V) array[p + 1]);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry<K, V> current = next;
+            advance();
+            return current;
+        }
+    }
+}
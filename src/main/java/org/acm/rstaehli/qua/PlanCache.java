@@ -0,0 +1,133 @@
+package org.acm.rstaehli.qua;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded, least recently used cache of bestMatch results keyed by goal
+ * type and properties.
+ *
+ * A repository invalidates a type when an implementation of that type is
+ * advertised.  Each type has a version that invalidating increments, and an
+ * entry stored under an older version is never returned again, so the cache
+ * never returns a plan older than the last advertise.  Lookups take no lock:
+ * stale entries are dropped when next looked up, or evicted as least recently
+ * used.
+ */
+public class PlanCache {
+
+    private final int maxEntries;
+    private final Map<GoalKey, Entry> plans = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();  // advertise count per type
+    private final AtomicLong clock = new AtomicLong();  // orders uses, for eviction
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static class Entry {
+        final Description plan;
+        final long version;  // of the plan's type when it was computed
+        volatile long used;  // clock value at last use
+
+        Entry(Description plan, long version, long used) {
+            this.plan = plan;
+            this.version = version;
+            this.used = used;
+        }
+    }
+
+    public PlanCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    Description get(GoalKey key) {
+        Entry entry = plans.get(key);
+        if (entry != null && entry.version != version(key.type())) {
+            plans.remove(key, entry);  // an advertise made it stale
+            entry = null;
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        entry.used = clock.incrementAndGet();
+        hits.increment();
+        return entry.plan;
+    }
+
+    /**
+     * @return the version to pass to put for a result computed from now on
+     */
+    long version(String type) {
+        AtomicLong version = versions.get(type);
+        return version == null ? 0L : version.get();
+    }
+
+    void put(GoalKey key, Description plan, long version) {
+        if (version != version(key.type())) {
+            return;  // an advertise made this result stale
+        }
+        plans.put(key, new Entry(plan, version, clock.incrementAndGet()));
+        if (plans.size() > maxEntries) {
+            evict();
+        }
+    }
+
+    /**
+     * remove the least recently used entries, about a tenth of the cache at a time,
+     * so the scan is paid once for many puts.  Only one thread scans at a time.
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;  // another thread is evicting
+        }
+        try {
+            int excess = plans.size() - maxEntries + maxEntries / 10;
+            if (excess <= 0) {
+                return;
+            }
+            List<Map.Entry<GoalKey, Entry>> entries = new ArrayList<>(plans.entrySet());
+            entries.sort(Comparator.comparingLong(e -> e.getValue().used));
+            for (Map.Entry<GoalKey, Entry> e: entries.subList(0, Math.min(excess, entries.size()))) {
+                plans.remove(e.getKey(), e.getValue());
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * forget all plans for type, e.g. because a new implementation was advertised.
+     */
+    public void invalidate(String type) {
+        versions.computeIfAbsent(type, t -> new AtomicLong()).incrementAndGet();
+    }
+
+    public void clear() {
+        plans.clear();
+    }
+
+    /**
+     * @return number of plans that may still be returned
+     */
+    public int size() {
+        int size = 0;
+        for (Map.Entry<GoalKey, Entry> e: plans.entrySet()) {
+            if (e.getValue().version == version(e.getKey().type())) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+}
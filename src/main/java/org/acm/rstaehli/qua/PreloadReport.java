@@ -0,0 +1,65 @@
+package org.acm.rstaehli.qua;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Outcome of FileBasedRepository.preload: how long each file took and which
+ * files could not be read or activated.
+ */
+public class PreloadReport {
+
+    private final int files;  // description files found in the directory
+    private final Map<String, Long> nanos = new ConcurrentHashMap<>();  // name -> time to read and activate
+    private final Map<String, Exception> failures = new ConcurrentHashMap<>();  // name -> why it was not loaded
+    private volatile long elapsedNanos;
+
+    PreloadReport(int files) {
+        this.files = files;
+    }
+
+    void timed(String name, long nanos) {
+        this.nanos.put(name, nanos);
+    }
+
+    void failed(String name, Exception e) {
+        failures.put(name, e);
+    }
+
+    void setElapsedNanos(long nanos) {
+        this.elapsedNanos = nanos;
+    }
+
+    public int files() {
+        return files;
+    }
+
+    /**
+     * @return number of files read and activated
+     */
+    public int loaded() {
+        return files - failures.size();
+    }
+
+    public Map<String, Long> nanosByName() {
+        return Collections.unmodifiableMap(nanos);
+    }
+
+    public Map<String, Exception> failures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * @return wall clock time for the whole preload, less than the sum of file times when run in parallel
+     */
+    public long elapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "preloaded " + loaded() + " of " + files + " files in " + elapsedNanos / 1000000 + " ms, "
+                + failures.size() + " failed";
+    }
+}
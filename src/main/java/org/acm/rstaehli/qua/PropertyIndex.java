@@ -0,0 +1,245 @@
+package org.acm.rstaehli.qua;
+
+import java.util.*;
+
+import static org.acm.rstaehli.qua.Behavior.MATCH_ANY;
+
+/**
+ * Inverted index of the implementations advertised for one type, keyed by
+ * property name and concrete property value.
+ *
+ * The index only narrows the candidates for a goal; Description.matchFor
+ * still decides the match.  A candidate is kept for a goal property when
+ * - it has the same String or Number value for that property,
+ * - its value is MATCH_ANY or some value the index cannot compare (e.g. a nested Description), or
+ * - its properties are ANY_PROPERTIES.
+ * Candidates are returned in advertised order so bestMatch is unchanged.
+ *
+ * An index is never modified once built.  Every bucket is a PersistentMap
+ * keyed by advertised position, so plus and minus return a new index that
+ * shares all but the few nodes they touch, and readers need no lock.
+ */
+final class PropertyIndex {
+
+    static final PropertyIndex EMPTY = new PropertyIndex(0L, PersistentMap.empty(), PersistentMap.empty(),
+            PersistentMap.empty(), PersistentMap.empty(), PersistentMap.empty());
+
+    private final long next;  // position of the next implementation added
+    private final PersistentMap<Long, Slot> all;  // every implementation by advertised position
+    private final PersistentMap<Identity, List<Long>> positions;  // where each implementation was added, oldest first
+    private final PersistentMap<Long, Description> anyProperties;  // match every goal property
+    private final PersistentMap<String, PersistentMap<Object, PersistentMap<Long, Description>>> byValue;
+    private final PersistentMap<String, PersistentMap<Long, Description>> open;  // wildcard or unindexable values
+    private volatile List<Description> ordered;  // all, in advertised order, once asked for
+
+    /**
+     * An implementation and the properties it was indexed under, so minus finds
+     * its buckets even if its properties were changed since.
+     */
+    private static class Slot {
+        final Description impl;
+        final Map<String, Object> properties;
+
+        Slot(Description impl, Map<String, Object> properties) {
+            this.impl = impl;
+            this.properties = properties;
+        }
+    }
+
+    /**
+     * An implementation as a key compared by reference, as equal implementations
+     * may be advertised separately.
+     */
+    private static final class Identity {
+        final Description impl;
+
+        Identity(Description impl) {
+            this.impl = impl;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Identity && ((Identity) o).impl == impl;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(impl);
+        }
+    }
+
+    private PropertyIndex(long next, PersistentMap<Long, Slot> all, PersistentMap<Identity, List<Long>> positions,
+                          PersistentMap<Long, Description> anyProperties,
+                          PersistentMap<String, PersistentMap<Object, PersistentMap<Long, Description>>> byValue,
+                          PersistentMap<String, PersistentMap<Long, Description>> open) {
+        this.next = next;
+        this.all = all;
+        this.positions = positions;
+        this.anyProperties = anyProperties;
+        this.byValue = byValue;
+        this.open = open;
+    }
+
+    /**
+     * @param impl implementation to add after all others
+     * @return a new index including impl
+     */
+    PropertyIndex plus(Description impl) {
+        Long position = next;
+        Identity id = new Identity(impl);
+        List<Long> added = positions.get(id);
+        PersistentMap<Identity, List<Long>> newPositions = positions.plus(id, added == null
+                ? Collections.singletonList(position) : with(added, position));  // advertised again
+        Map<String, Object> properties = impl.properties();
+        if (properties == null) {  // can only match goals without properties
+            return new PropertyIndex(next + 1, all.plus(position, new Slot(impl, null)), newPositions,
+                    anyProperties, byValue, open);
+        }
+        if (properties.equals(BehaviorImpl.ANY_PROPERTIES)) {
+            return new PropertyIndex(next + 1, all.plus(position, new Slot(impl, BehaviorImpl.ANY_PROPERTIES)),
+                    newPositions, anyProperties.plus(position, impl), byValue, open);
+        }
+        Map<String, Object> indexed = new HashMap<>(properties);
+        PersistentMap<String, PersistentMap<Object, PersistentMap<Long, Description>>> newByValue = byValue;
+        PersistentMap<String, PersistentMap<Long, Description>> newOpen = open;
+        for (Map.Entry<String, Object> e: indexed.entrySet()) {
+            String name = e.getKey();
+            Object value = e.getValue();
+            if (isIndexable(value)) {
+                PersistentMap<Object, PersistentMap<Long, Description>> values = orEmpty(newByValue.get(name));
+                newByValue = newByValue.plus(name, values.plus(value, orEmpty(values.get(value)).plus(position, impl)));
+            } else {
+                newOpen = newOpen.plus(name, orEmpty(newOpen.get(name)).plus(position, impl));
+            }
+        }
+        return new PropertyIndex(next + 1, all.plus(position, new Slot(impl, indexed)), newPositions,
+                anyProperties, newByValue, newOpen);
+    }
+
+    /**
+     * @param impl implementation to remove, by identity; the earliest added if it was added more than once
+     * @return a new index without impl, or this index if it does not hold impl
+     */
+    PropertyIndex minus(Description impl) {
+        Identity id = new Identity(impl);
+        List<Long> added = positions.get(id);
+        if (added == null) {
+            return this;
+        }
+        Long position = added.get(0);
+        PersistentMap<Identity, List<Long>> newPositions = added.size() == 1
+                ? positions.minus(id) : positions.plus(id, added.subList(1, added.size()));
+        Slot slot = all.get(position);
+        PersistentMap<Long, Slot> newAll = all.minus(position);
+        if (slot.properties == null) {
+            return new PropertyIndex(next, newAll, newPositions, anyProperties, byValue, open);
+        }
+        if (slot.properties == BehaviorImpl.ANY_PROPERTIES) {
+            return new PropertyIndex(next, newAll, newPositions, anyProperties.minus(position), byValue, open);
+        }
+        PersistentMap<String, PersistentMap<Object, PersistentMap<Long, Description>>> newByValue = byValue;
+        PersistentMap<String, PersistentMap<Long, Description>> newOpen = open;
+        for (Map.Entry<String, Object> e: slot.properties.entrySet()) {
+            String name = e.getKey();
+            Object value = e.getValue();
+            if (isIndexable(value)) {
+                PersistentMap<Object, PersistentMap<Long, Description>> values = newByValue.get(name);
+                PersistentMap<Long, Description> rest = values.get(value).minus(position);
+                values = rest.isEmpty() ? values.minus(value) : values.plus(value, rest);
+                newByValue = values.isEmpty() ? newByValue.minus(name) : newByValue.plus(name, values);
+            } else {
+                PersistentMap<Long, Description> rest = newOpen.get(name).minus(position);
+                newOpen = rest.isEmpty() ? newOpen.minus(name) : newOpen.plus(name, rest);
+            }
+        }
+        return new PropertyIndex(next, newAll, newPositions, anyProperties, newByValue, newOpen);
+    }
+
+    private static List<Long> with(List<Long> list, Long position) {
+        List<Long> copy = new ArrayList<>(list);
+        copy.add(position);
+        return Collections.unmodifiableList(copy);
+    }
+
+    private static <K, V> PersistentMap<K, V> orEmpty(PersistentMap<K, V> map) {
+        return map == null ? PersistentMap.empty() : map;
+    }
+
+    boolean isEmpty() {
+        return all.isEmpty();
+    }
+
+    /**
+     * @return every implementation in advertised order
+     */
+    List<Description> all() {
+        List<Description> list = ordered;
+        if (list == null) {
+            List<Map.Entry<Long, Slot>> entries = new ArrayList<>(all.entrySet());
+            entries.sort(Map.Entry.comparingByKey());
+            list = new ArrayList<>(entries.size());
+            for (Map.Entry<Long, Slot> e: entries) {
+                list.add(e.getValue().impl);
+            }
+            list = Collections.unmodifiableList(list);
+            ordered = list;
+        }
+        return list;
+    }
+
+    /**
+     * @param goal describes the required properties
+     * @return the smallest candidate list any single goal property selects, in advertised order
+     */
+    List<Description> candidatesFor(Description goal) {
+        Map<String, Object> required = goal.properties();
+        if (required == null || required.isEmpty()) {
+            return all();
+        }
+        Map<Long, Description> exact = null;
+        Map<Long, Description> wildcards = null;
+        int fewest = Integer.MAX_VALUE;
+        for (Map.Entry<String, Object> e: required.entrySet()) {
+            if (!isIndexable(e.getValue())) {
+                continue;  // only concrete goal values narrow the search
+            }
+            Map<Long, Description> e1 = exactMatches(e.getKey(), e.getValue());
+            Map<Long, Description> e2 = orEmpty(open.get(e.getKey()));
+            int count = e1.size() + e2.size();
+            if (count < fewest) {
+                fewest = count;
+                exact = e1;
+                wildcards = e2;
+            }
+        }
+        if (exact == null) {
+            return all();  // no goal property we can index on
+        }
+        if (fewest + anyProperties.size() == 0) {
+            return Collections.emptyList();
+        }
+        List<Map.Entry<Long, Description>> candidates = new ArrayList<>(fewest + anyProperties.size());
+        candidates.addAll(exact.entrySet());
+        candidates.addAll(wildcards.entrySet());
+        candidates.addAll(anyProperties.entrySet());
+        candidates.sort(Map.Entry.comparingByKey());
+        List<Description> impls = new ArrayList<>(candidates.size());
+        for (Map.Entry<Long, Description> e: candidates) {
+            impls.add(e.getValue());
+        }
+        return impls;
+    }
+
+    private Map<Long, Description> exactMatches(String name, Object value) {
+        PersistentMap<Object, PersistentMap<Long, Description>> values = byValue.get(name);
+        if (values == null) {
+            return Collections.emptyMap();
+        }
+        return orEmpty(values.get(value));
+    }
+
+    // BehaviorImpl.match compares only String and Number values with equals
+    private static boolean isIndexable(Object value) {
+        return (value instanceof String || value instanceof Number) && value != MATCH_ANY;
+    }
+}
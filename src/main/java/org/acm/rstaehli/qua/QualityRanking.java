@@ -0,0 +1,141 @@
+package org.acm.rstaehli.qua;
+
+import java.util.*;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Ranks matches by the utility of their quality for the goal's quality.
+ *
+ * An implementation states the error it expects in each dimension as the
+ * allowances of its own Quality, e.g. "latency" 20 (milliseconds).  For every
+ * error dimension of the goal, that error scores between 0 and 1 by the goal's
+ * utility function for the dimension:
+ * - a DoubleUnaryOperator, applied to the error;
+ * - a Map with numbers "ideal" and "worst", scoring 1 at ideal falling linearly to 0 at worst;
+ * - otherwise 1 at no error falling linearly to 0 at the goal's allowance, or 1/(1+error) without one.
+ * A match with an error above the goal's allowance is unacceptable, and one
+ * with no estimate for a dimension scores 0 in it.  The utility of a match is
+ * its mean score, and matches below the goal's requiredUtility are skipped.
+ *
+ * Errors measured at run time, e.g. by a LatencyMonitor, replace stated ones.
+ *
+ * Utility is computed once per match and only the best k are kept, in a heap,
+ * so ranking n matches costs O(n log k).  Equal utilities keep advertised order.
+ */
+public class QualityRanking implements Ranking {
+
+    private static class Scored {
+        final Description match;
+        final double utility;
+        final int position;  // in advertised order
+
+        Scored(Description match, double utility, int position) {
+            this.match = match;
+            this.utility = utility;
+            this.position = position;
+        }
+    }
+
+    private static final Comparator<Scored> WORST_FIRST = (a, b) -> {
+        int byUtility = Double.compare(a.utility, b.utility);
+        return byUtility != 0 ? byUtility : Integer.compare(b.position, a.position);
+    };
+
+    private final ErrorEstimates observed;  // null unless measured errors are used
+
+    public QualityRanking() {
+        this(null);
+    }
+
+    /**
+     * @param observed measured errors, preferred to those stated by implementations
+     */
+    public QualityRanking(ErrorEstimates observed) {
+        this.observed = observed;
+    }
+
+    @Override
+    public List<Description> best(Description goal, List<Description> matches, int k) {
+        if (!(goal.quality() instanceof QualityImpl)) {
+            return matches.subList(0, Math.min(k, matches.size()));  // nothing to rank by
+        }
+        QualityImpl wanted = (QualityImpl) goal.quality();
+        double required = wanted.requiredUtility == null ? Double.NEGATIVE_INFINITY : wanted.requiredUtility;
+        PriorityQueue<Scored> best = new PriorityQueue<>(Math.max(1, k), WORST_FIRST);
+        for (int i = 0; i < matches.size(); i++) {
+            Description match = matches.get(i);
+            double utility = utility(wanted, match);
+            if (utility < required || Double.isNaN(utility)) {
+                continue;
+            }
+            Scored scored = new Scored(match, utility, i);
+            if (best.size() < k) {
+                best.add(scored);
+            } else if (k > 0 && WORST_FIRST.compare(scored, best.peek()) > 0) {
+                best.poll();
+                best.add(scored);
+            }
+        }
+        Description[] ranked = new Description[best.size()];
+        for (int i = ranked.length - 1; i >= 0; i--) {
+            ranked[i] = best.poll().match;
+        }
+        return Arrays.asList(ranked);
+    }
+
+    /**
+     * @return mean score over the wanted error dimensions, or negative infinity if some error is not allowed
+     */
+    public double utility(QualityImpl wanted, Description match) {
+        Collection<String> dimensions = wanted.errorDimensions != null ? wanted.errorDimensions
+                : wanted.utilityFunctions != null ? wanted.utilityFunctions.keySet()
+                : Collections.emptySet();
+        if (dimensions.isEmpty()) {
+            return 1.0;
+        }
+        Quality offered = match.quality();
+        Map<String, Object> errors = offered instanceof QualityImpl ? ((QualityImpl) offered).allowances : null;
+        double sum = 0;
+        for (String dimension: dimensions) {
+            Object error = observed == null ? null : observed.estimate(match, dimension);
+            if (error == null && errors != null) {
+                error = errors.get(dimension);
+            }
+            if (!(error instanceof Number)) {
+                continue;  // no estimate scores 0
+            }
+            double e = ((Number) error).doubleValue();
+            Object allowance = wanted.allowances == null ? null : wanted.allowances.get(dimension);
+            if (allowance instanceof Number && e > ((Number) allowance).doubleValue()) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            Object function = wanted.utilityFunctions == null ? null : wanted.utilityFunctions.get(dimension);
+            sum += score(function, e, allowance);
+        }
+        return sum / dimensions.size();
+    }
+
+    private static double score(Object function, double error, Object allowance) {
+        if (function instanceof DoubleUnaryOperator) {
+            return ((DoubleUnaryOperator) function).applyAsDouble(error);
+        }
+        if (function instanceof Map) {
+            Object ideal = ((Map<?, ?>) function).get("ideal");
+            Object worst = ((Map<?, ?>) function).get("worst");
+            if (ideal instanceof Number && worst instanceof Number) {
+                return linear(error, ((Number) ideal).doubleValue(), ((Number) worst).doubleValue());
+            }
+        }
+        if (allowance instanceof Number) {
+            return linear(error, 0, ((Number) allowance).doubleValue());
+        }
+        return 1 / (1 + Math.abs(error));
+    }
+
+    private static double linear(double error, double ideal, double worst) {
+        if (worst == ideal) {
+            return error == ideal ? 1 : 0;
+        }
+        return Math.max(0, Math.min(1, (worst - error) / (worst - ideal)));
+    }
+}
@@ -0,0 +1,17 @@
+package org.acm.rstaehli.qua;
+
+import java.util.List;
+
+/**
+ * Orders the implementations matching a goal, for AbstractRepository.bestMatch.
+ */
+public interface Ranking {
+
+    /**
+     * @param goal description whose quality says what makes one match better than another
+     * @param matches implementations matching goal, in advertised order
+     * @param k most results wanted
+     * @return at most k acceptable matches, best first
+     */
+    List<Description> best(Description goal, List<Description> matches, int k);
+}
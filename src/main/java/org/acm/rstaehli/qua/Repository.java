@@ -8,6 +8,9 @@ import java.util.Map;
 public interface Repository {
     public void advertise(Description impl);
     List<Description> implementationsMatching(Description desc);
+    default List<Description> implementationsMatching(CompiledGoal goal) {  // same goal matched again without preparing it
+        return implementationsMatching(goal.goal());  // matched afresh, unless overridden to use the prepared form
+    }
     Description implementationByName(String name) throws NoImplementationFound;
     Description bestMatch(Description desc) throws NoImplementationFound;
 }
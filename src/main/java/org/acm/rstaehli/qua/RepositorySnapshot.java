@@ -0,0 +1,491 @@
+package org.acm.rstaehli.qua;
+
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.acm.rstaehli.qua.Behavior.MATCH_ANY;
+import static org.acm.rstaehli.qua.Behavior.UNKNOWN_TYPE;
+
+/**
+ * Binary file of advertised implementations, read back without JSON parsing,
+ * namespace translation or inheritance.
+ *
+ * Layout (big-endian):
+ *   int magic, int version
+ *   int string count, then each string as int length and UTF-8 bytes
+ *   int entry count, then each entry as
+ *     int length of the rest of the entry, byte NAMED or TYPED, int key string,
+ *     encoded Description
+ * Every type, property name, name and string value is written once in the
+ * string table and referred to by its index, so namespace-expanded URIs
+ * repeated across a catalog cost four bytes each.
+ * The entry header lets a reader find every entry for a key without decoding it.
+ *
+ * Only values that can be read back are written: strings, numbers, booleans,
+ * lists and maps of these, and nested Descriptions.  An implementation holding
+ * any other object (e.g. the service of an active builder) is left out.
+ */
+final class RepositorySnapshot {
+
+    private static final Logger logger = Logger.getLogger(RepositorySnapshot.class);
+
+    static final int MAGIC = 0x51554153;  // "QUAS"
+    static final int VERSION = 1;
+
+    static final byte TYPED = 0;
+    static final byte NAMED = 1;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte INTEGER = 3;
+    private static final byte LONG = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte DESCRIPTION = 6;
+    private static final byte LIST = 7;
+    private static final byte MAP = 8;
+
+    private final ByteBuffer buffer;
+    private final String[] strings;
+    private final int[] offsets;  // start of each encoded Description
+    private final byte[] kinds;  // NAMED or TYPED
+    private final int[] keys;  // string index of each entry's name or type
+
+    private RepositorySnapshot(ByteBuffer buffer, String[] strings, int[] offsets, byte[] kinds, int[] keys) {
+        this.buffer = buffer;
+        this.strings = strings;
+        this.offsets = offsets;
+        this.kinds = kinds;
+        this.keys = keys;
+    }
+
+    /**
+     * Map a snapshot file into memory and read its string table and entry headers.
+     * @throws IOException if the file cannot be read or is not a snapshot of this version
+     */
+    static RepositorySnapshot open(Path file) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());  // stays valid after close
+        }
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("not a repository snapshot: " + file);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported repository snapshot version " + version + ": " + file);
+            }
+            String[] strings = new String[buffer.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                strings[i] = constant(new String(bytes, StandardCharsets.UTF_8));
+            }
+            int count = buffer.getInt();
+            int[] offsets = new int[count];
+            byte[] kinds = new byte[count];
+            int[] keys = new int[count];
+            for (int i = 0; i < count; i++) {
+                int length = buffer.getInt();
+                int end = buffer.position() + length;
+                kinds[i] = buffer.get();
+                keys[i] = buffer.getInt();
+                offsets[i] = buffer.position();
+                buffer.position(end);
+            }
+            return new RepositorySnapshot(buffer, strings, offsets, kinds, keys);
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("truncated repository snapshot: " + file, e);
+        }
+    }
+
+    int size() {
+        return offsets.length;
+    }
+
+    boolean isNamed(int entry) {
+        return kinds[entry] == NAMED;
+    }
+
+    /**
+     * @return name of a NAMED entry or type of a TYPED entry
+     */
+    String key(int entry) {
+        return strings[keys[entry]];
+    }
+
+    /**
+     * @return a new Description decoded from the entry
+     */
+    Description decode(int entry) {
+        ByteBuffer in = buffer.duplicate();  // own position, so entries decode concurrently
+        in.position(offsets[entry]);
+        return readDescription(in);
+    }
+
+    /**
+     * Compare goal's string property values with the entry's own, without decoding it.
+     * @param goal properties of a goal for the entry's type
+     * @return false if the entry cannot match goal, as it has another string value or
+     * lacks a property goal gives a string value; true if it may match
+     */
+    boolean mayMatch(int entry, Map<String, Object> goal) {
+        if (goal == null || goal.isEmpty()) {
+            return true;
+        }
+        ByteBuffer in = buffer.duplicate();
+        in.position(offsets[entry]);
+        in.getInt();  // type
+        int count = in.getInt();
+        if (count < 0) {
+            return true;  // no properties, decided when matched
+        }
+        Map<String, Object> own = new HashMap<>();  // string values, else the tag of any other value
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            byte tag = in.get();
+            if (tag == STRING) {
+                own.put(name, readString(in));
+            } else {
+                own.put(name, tag);
+                skipValue(tag, in);
+            }
+        }
+        if (BehaviorImpl.ANY_PROPERTIES.equals(own)) {
+            return true;
+        }
+        for (Map.Entry<String, Object> required: goal.entrySet()) {
+            if (!(required.getValue() instanceof String)) {
+                continue;
+            }
+            Object value = own.get(required.getKey());
+            if (value == null) {
+                return false;
+            }
+            if (value instanceof String && !value.equals(MATCH_ANY) && !value.equals(required.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipDescription(ByteBuffer in) {
+        in.getInt();  // type
+        skipMap(in);
+        if (in.get() != NULL) {
+            if (in.get() != NULL) {
+                skipDescription(in);
+            }
+            skipMap(in);
+        }
+        skipMap(in);
+    }
+
+    private void skipMap(ByteBuffer in) {
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            in.getInt();  // key
+            skipValue(in.get(), in);
+        }
+    }
+
+    private void skipValue(byte tag, ByteBuffer in) {
+        switch (tag) {
+            case NULL:
+                return;
+            case STRING:
+            case INTEGER:
+                in.getInt();
+                return;
+            case DOUBLE:
+            case LONG:
+                in.getLong();
+                return;
+            case BOOLEAN:
+                in.get();
+                return;
+            case DESCRIPTION:
+                skipDescription(in);
+                return;
+            case LIST:
+                int count = in.getInt();
+                for (int i = 0; i < count; i++) {
+                    skipValue(in.get(), in);
+                }
+                return;
+            case MAP:
+                skipMap(in);
+                return;
+            default:
+                throw new IllegalStateException("unknown value tag " + tag + " in repository snapshot");
+        }
+    }
+
+    private Description readDescription(ByteBuffer in) {
+        Description d = new Description();
+        String type = readString(in);
+        d.setType(type == null ? UNKNOWN_TYPE : type);
+        Map<String, Object> properties = readMap(in);
+        d.setProperties(BehaviorImpl.ANY_PROPERTIES.equals(properties) ? BehaviorImpl.ANY_PROPERTIES : properties);
+        if (in.get() != NULL) {
+            Description builder = in.get() == NULL ? null : readDescription(in);
+            d.setConstruction(new ConstructionImpl(builder, readMap(in)));
+        }
+        Map<String, Object> interfaces = readMap(in);
+        if (interfaces != null) {
+            for (Map.Entry<String, Object> e: interfaces.entrySet()) {
+                d.setInterface(e.getKey(), e.getValue());
+            }
+        }
+        return d.computeStatus();
+    }
+
+    // the Behavior constants; other strings are shared within the snapshot only
+    private static String constant(String s) {
+        if (s.equals(MATCH_ANY)) {
+            return MATCH_ANY;
+        }
+        return s.equals(UNKNOWN_TYPE) ? UNKNOWN_TYPE : s;
+    }
+
+    private String readString(ByteBuffer in) {
+        int index = in.getInt();
+        return index < 0 ? null : strings[index];
+    }
+
+    private Map<String, Object> readMap(ByteBuffer in) {
+        int count = in.getInt();
+        if (count < 0) {
+            return null;
+        }
+        Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            map.put(readString(in), readValue(in));
+        }
+        return map;
+    }
+
+    private Object readValue(ByteBuffer in) {
+        byte tag = in.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);  // MATCH_ANY is the constant matching compares by reference
+            case DOUBLE:
+                return in.getDouble();
+            case INTEGER:
+                return in.getInt();
+            case LONG:
+                return in.getLong();
+            case BOOLEAN:
+                return in.get() != 0;
+            case DESCRIPTION:
+                return readDescription(in);
+            case LIST:
+                int count = in.getInt();
+                List<Object> list = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            case MAP:
+                return readMap(in);
+            default:
+                throw new IllegalStateException("unknown value tag " + tag + " in repository snapshot");
+        }
+    }
+
+    /**
+     * Write implementations to file, replacing it atomically.
+     * @param impls advertised implementations, in the order they should be advertised again
+     * @return number of implementations written; the others held values that cannot be written
+     */
+    static int write(Collection<Description> impls, Path file) throws IOException {
+        Writer writer = new Writer();
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(entries);
+        int written = 0;
+        for (Description d: impls) {
+            byte[] entry = writer.entry(d);
+            if (entry == null) {
+                continue;  // warned by entry
+            }
+            out.writeInt(entry.length);
+            out.write(entry);
+            written++;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(writer.table.size());
+        for (String s: writer.table) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            header.writeInt(utf8.length);
+            header.write(utf8);
+        }
+        header.writeInt(written);
+        entries.writeTo(header);
+        header.flush();
+
+        Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, bytes.toByteArray());
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return written;
+    }
+
+    private static String nameOf(Description d) {
+        return d.hasProperty("name") ? d.name() : null;
+    }
+
+    private static class NotWritable extends Exception {
+        NotWritable(String reason) {
+            super(reason);
+        }
+    }
+
+    /**
+     * Encodes entries and collects the strings they use.
+     */
+    private static class Writer {
+        final List<String> table = new ArrayList<>();
+        final Map<String, Integer> indexes = new HashMap<>();
+
+        /**
+         * @return the entry after its length, or null if d cannot be written
+         */
+        byte[] entry(Description d) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            String name = nameOf(d);
+            boolean named = name != null && !name.equals(MATCH_ANY);  // as InMemoryRepository.advertise
+            out.writeByte(named ? NAMED : TYPED);
+            writeString(named ? name : d.type(), out);
+            try {
+                writeDescription(d, out, Collections.newSetFromMap(new IdentityHashMap<>()));
+            } catch (NotWritable e) {
+                logger.warn("not written to repository snapshot, so lost on restart: "
+                        + (named ? name : d.type()) + ".  Reason: " + e.getMessage());
+                return null;
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        void writeDescription(Description d, DataOutputStream out, Set<Description> enclosing)
+                throws IOException, NotWritable {
+            if (!enclosing.add(d)) {
+                throw new NotWritable("refers to itself");
+            }
+            writeString(d.type(), out);
+            writeMap(d.properties(), out, enclosing);
+            Construction c = d.construction;
+            if (c == null) {
+                out.writeByte(NULL);
+            } else {
+                out.writeByte(DESCRIPTION);
+                if (c.builderDescription() == null) {
+                    out.writeByte(NULL);
+                } else {
+                    out.writeByte(DESCRIPTION);
+                    writeDescription(c.builderDescription(), out, enclosing);
+                }
+                writeMap(c.dependencies(), out, enclosing);
+            }
+            writeMap(d.interfaces(), out, enclosing);
+            enclosing.remove(d);
+        }
+
+        void writeString(String s, DataOutputStream out) throws IOException {
+            if (s == null) {
+                out.writeInt(-1);
+                return;
+            }
+            Integer index = indexes.get(s);
+            if (index == null) {
+                index = table.size();
+                table.add(s);
+                indexes.put(s, index);
+            }
+            out.writeInt(index);
+        }
+
+        void writeMap(Map<String, Object> map, DataOutputStream out, Set<Description> enclosing)
+                throws IOException, NotWritable {
+            if (map == null) {
+                out.writeInt(-1);
+                return;
+            }
+            out.writeInt(map.size());
+            for (Map.Entry<String, Object> e: map.entrySet()) {
+                writeString(e.getKey(), out);
+                writeValue(e.getValue(), out, enclosing);
+            }
+        }
+
+        void writeValue(Object value, DataOutputStream out, Set<Description> enclosing)
+                throws IOException, NotWritable {
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof String) {
+                out.writeByte(STRING);
+                writeString((String) value, out);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof Integer) {
+                out.writeByte(INTEGER);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                out.writeByte((Boolean) value ? 1 : 0);
+            } else if (value instanceof Description) {
+                out.writeByte(DESCRIPTION);
+                writeDescription((Description) value, out, enclosing);
+            } else if (value instanceof List) {
+                out.writeByte(LIST);
+                List<?> list = (List<?>) value;
+                out.writeInt(list.size());
+                for (Object o: list) {
+                    writeValue(o, out, enclosing);
+                }
+            } else if (value instanceof Map && allStringKeys((Map<?, ?>) value)) {
+                out.writeByte(MAP);
+                writeMap((Map<String, Object>) value, out, enclosing);
+            } else {
+                throw new NotWritable("holds a value that cannot be read back: " + value.getClass().getName());
+            }
+        }
+
+        private static boolean allStringKeys(Map<?, ?> map) {
+            for (Object key: map.keySet()) {
+                if (!(key instanceof String)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.acm.rstaehli.qua;
+
+import org.acm.rstaehli.qua.exceptions.NoImplementationFound;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Applies a lifecycle step to the sibling dependencies of one Description,
+ * concurrently when an Executor is given.
+ *
+ * The calling thread also runs every step no other thread has started yet,
+ * so nested use on a small or saturated executor cannot wait on itself.
+ */
+final class Siblings {
+
+    interface Step {
+        void apply(Description d) throws NoImplementationFound;
+    }
+
+    private Siblings() {
+    }
+
+    /**
+     * Apply step to each distinct sibling and return when all are done.
+     * @param siblings dependencies of one parent
+     * @param executor null to run serially on the calling thread
+     * @param step lifecycle operation for one sibling
+     * @throws NoImplementationFound the first failure of any step, after all steps finish
+     */
+    static void forEach(List<Description> siblings, Executor executor, Step step) throws NoImplementationFound {
+        List<Description> distinct = distinct(siblings);  // never run two steps on the same object
+        if (executor == null || distinct.size() < 2) {
+            for (Description d: distinct) {
+                step.apply(d);
+            }
+            return;
+        }
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        for (Description d: distinct) {
+            tasks.add(new FutureTask<>(() -> {
+                step.apply(d);
+                return null;
+            }));
+        }
+        for (int i = 1; i < tasks.size(); i++) {
+            try {
+                executor.execute(tasks.get(i));
+            } catch (RejectedExecutionException e) {
+                break;  // the calling thread runs whatever was not accepted
+            }
+        }
+        for (FutureTask<Void> task: tasks) {
+            task.run();  // does nothing if another thread already started it
+        }
+        join(tasks);
+    }
+
+    private static List<Description> distinct(List<Description> siblings) {
+        Set<Description> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Description> distinct = new ArrayList<>(siblings.size());
+        for (Description d: siblings) {
+            if (seen.add(d)) {
+                distinct.add(d);
+            }
+        }
+        return distinct;
+    }
+
+    private static void join(List<FutureTask<Void>> tasks) throws NoImplementationFound {
+        Throwable failure = null;
+        for (FutureTask<Void> task: tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted waiting for dependencies", e);
+            }
+        }
+        if (failure instanceof NoImplementationFound) {
+            throw (NoImplementationFound) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+}
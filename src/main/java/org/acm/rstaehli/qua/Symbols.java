@@ -0,0 +1,46 @@
+package org.acm.rstaehli.qua;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonical instances of types and of property and dependency names.
+ *
+ * Every Description uses the same String object for the same type or key, so
+ * a namespace-expanded URI repeated across a catalog is held once, and
+ * String.equals and map lookups between symbols succeed on the reference
+ * check without comparing characters.  Property values are not interned: the
+ * table is never emptied, so it only holds the catalog's vocabulary.
+ * MATCH_ANY and UNKNOWN_TYPE intern to the Behavior constants, which matching
+ * compares by reference.
+ */
+public final class Symbols {
+
+    private static final Map<String, String> table = new ConcurrentHashMap<>();
+
+    static {
+        intern(Behavior.MATCH_ANY);
+        intern(Behavior.UNKNOWN_TYPE);
+    }
+
+    private Symbols() {
+    }
+
+    /**
+     * @return the canonical instance equal to s, or null if s is null
+     */
+    public static String intern(String s) {
+        if (s == null) {
+            return null;
+        }
+        String canonical = table.putIfAbsent(s, s);
+        return canonical == null ? s : canonical;
+    }
+
+    /**
+     * @return number of distinct symbols interned
+     */
+    public static int size() {
+        return table.size();
+    }
+}
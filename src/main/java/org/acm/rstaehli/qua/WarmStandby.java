@@ -0,0 +1,227 @@
+package org.acm.rstaehli.qua;
+
+import org.acm.rstaehli.qua.exceptions.NoImplementationFound;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Services activated in the background ahead of requests for them.
+ *
+ * For each hot goal a few copies are planned, assembled and started on the
+ * executor, so take() on the request path returns an ACTIVE service and only
+ * starts activating a replacement.  Goals are made hot by warm(), e.g. at
+ * startup with the goals most requested in an earlier run (see hotGoals).
+ * Goals are matched by type and plain property values, as for the plan cache;
+ * others are always activated on the caller's thread.
+ */
+public class WarmStandby {
+
+    private static final Logger logger = Logger.getLogger(WarmStandby.class);
+
+    private final Repository repo;
+    private final Executor executor;
+    private final int standbyPerGoal;
+    private final Map<GoalKey, Standby> standbys = new ConcurrentHashMap<>();
+    private final Map<GoalKey, Requests> requests = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Ready services for one hot goal.
+     */
+    private static class Standby {
+        final Description goal;  // template, never activated itself
+        final Deque<Description> ready = new ConcurrentLinkedDeque<>();
+        final AtomicInteger pending = new AtomicInteger();  // activations not yet finished
+        volatile boolean closed;
+
+        Standby(Description goal) {
+            this.goal = goal;
+        }
+    }
+
+    private static class Requests {
+        final Description goal;  // first goal requested with this key
+        final AtomicLong count = new AtomicLong();
+
+        Requests(Description goal) {
+            this.goal = goal;
+        }
+    }
+
+    /**
+     * @param repo plans every standby service
+     * @param executor activates standby services, away from the request path
+     * @param standbyPerGoal ready services kept for each hot goal
+     */
+    public WarmStandby(Repository repo, Executor executor, int standbyPerGoal) {
+        this.repo = repo;
+        this.executor = executor;
+        this.standbyPerGoal = standbyPerGoal;
+    }
+
+    /**
+     * keep standby services for every goal.
+     * @return future completed when each goal has its standby services, or exceptionally if one cannot be activated
+     */
+    public CompletableFuture<Void> warm(Collection<Description> goals) {
+        List<CompletableFuture<?>> filled = new ArrayList<>();
+        for (Description goal: goals) {
+            filled.add(warm(goal));
+        }
+        return CompletableFuture.allOf(filled.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * keep standby services for goal.
+     * @return future completed when goal has its standby services
+     */
+    public CompletableFuture<Void> warm(Description goal) {
+        GoalKey key = GoalKey.of(goal);
+        if (key == null) {
+            logger.warn("cannot keep standby services for goal with nested descriptions: " + goal.type());
+            return CompletableFuture.completedFuture(null);
+        }
+        return refill(standbys.computeIfAbsent(key, k -> new Standby(goal.copy())));
+    }
+
+    private CompletableFuture<Void> refill(Standby standby) {
+        List<CompletableFuture<?>> activations = new ArrayList<>();
+        while (true) {
+            int pending = standby.pending.get();
+            if (standby.ready.size() + pending >= standbyPerGoal) {
+                break;
+            }
+            if (!standby.pending.compareAndSet(pending, pending + 1)) {
+                continue;  // another thread is refilling too
+            }
+            activations.add(CompletableFuture.supplyAsync(() -> activated(standby.goal.copy()), executor)
+                    .whenComplete((service, failure) -> {
+                        if (failure == null) {
+                            standby.ready.add(service);  // before pending drops, so no refill counts it missing
+                            standby.pending.decrementAndGet();
+                            if (standby.closed) {
+                                recycleReady(standby);  // finished after close
+                            }
+                        } else {
+                            standby.pending.decrementAndGet();
+                            logger.error("could not activate standby service of type: " + standby.goal.type()
+                                    + ".  Exception: " + failure);
+                        }
+                    }));
+        }
+        return CompletableFuture.allOf(activations.toArray(new CompletableFuture[0]));
+    }
+
+    private Description activated(Description goal) {
+        try {
+            goal.plan(repo);
+            if (!goal.isAssembled()) {
+                goal.assemble(repo);
+            }
+            return goal.activate(repo);
+        } catch (NoImplementationFound e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * @return an active service for goal: a standby one if ready, else one activated on this thread
+     */
+    public Description take(Description goal) throws NoImplementationFound {
+        if (goal.isActive()) {
+            return goal;
+        }
+        GoalKey key = GoalKey.of(goal);
+        if (key != null) {
+            requests.computeIfAbsent(key, k -> new Requests(goal.copy())).count.incrementAndGet();
+            Standby standby = standbys.get(key);
+            Description ready = standby == null ? null : standby.ready.poll();
+            if (ready != null) {
+                hits.incrementAndGet();
+                refill(standby);
+                return ready;
+            }
+        }
+        misses.incrementAndGet();
+        try {
+            return activated(goal.copy());
+        } catch (CompletionException e) {
+            throw (NoImplementationFound) e.getCause();
+        }
+    }
+
+    /**
+     * @return primary service object for goal, as from take
+     */
+    public Object service(Description goal) throws NoImplementationFound {
+        return take(goal).service();
+    }
+
+    /**
+     * @param n most goals wanted
+     * @return goals taken most often, most first, e.g. to warm at the next startup
+     */
+    public List<Description> hotGoals(int n) {
+        List<Requests> counted = new ArrayList<>(requests.values());
+        counted.sort((a, b) -> Long.compare(b.count.get(), a.count.get()));
+        List<Description> goals = new ArrayList<>();
+        for (Requests r: counted.subList(0, Math.min(n, counted.size()))) {
+            goals.add(r.goal);
+        }
+        return goals;
+    }
+
+    /**
+     * @return number of standby services ready now for goal
+     */
+    public int ready(Description goal) {
+        GoalKey key = GoalKey.of(goal);
+        Standby standby = key == null ? null : standbys.get(key);
+        return standby == null ? 0 : standby.ready.size();
+    }
+
+    /**
+     * @return number of takes served by a standby service
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of takes that activated a service on the caller's thread
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * stop keeping standby services and recycle those ready.
+     */
+    public void close() {
+        List<Standby> closed = new ArrayList<>(standbys.values());
+        standbys.clear();
+        for (Standby standby: closed) {
+            standby.closed = true;
+            recycleReady(standby);
+        }
+    }
+
+    private static void recycleReady(Standby standby) {
+        for (Description service = standby.ready.poll(); service != null; service = standby.ready.poll()) {
+            try {
+                service.recycle();
+            } catch (NoImplementationFound | RuntimeException e) {
+                logger.warn("could not recycle standby service of type: " + service.type() + ".  Exception: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.acm.rstaehli.qua.tools;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.acm.rstaehli.qua.Behavior;
+import org.acm.rstaehli.qua.ConstructionImpl;
+import org.acm.rstaehli.qua.Description;
+import org.acm.rstaehli.qua.Symbols;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+
+import static org.acm.rstaehli.qua.Behavior.UNKNOWN_TYPE;
+
+/**
+ * Build a Description directly from JSON tokens, without first reading the
+ * whole document into a Map.
+ *
+ * Produces the same Description as new Description(map) on the map
+ * Serializer would read, but only for documents it can finish in one pass:
+ * no "parents" (inherited fields must be merged first) and "namespaces", if
+ * present, before any other field (aliases are translated as values are read).
+ * read returns null for any other document so the caller can use the map path.
+ */
+final class DescriptionReader {
+
+    private final Gson gson;
+    private Namespace namespace = new Namespace(new HashMap<>());
+
+    DescriptionReader(Gson gson) {
+        this.gson = gson;
+    }
+
+    /**
+     * @param in JSON text of one Description
+     * @return the Description, or null if the document needs the map path
+     */
+    Description read(Reader in) throws IOException {
+        return readDescription(gson.newJsonReader(in), true);
+    }
+
+    private Map<String, String> readNamespaces(JsonReader json) throws IOException {
+        Map<String, String> namespaces = new HashMap<>();
+        json.beginObject();
+        while (json.hasNext()) {
+            namespaces.put(json.nextName(), json.nextString());
+        }
+        json.endObject();
+        return namespaces;
+    }
+
+    /**
+     * @param document true for the whole document, false for a nested Description
+     */
+    private Description readDescription(JsonReader json, boolean document) throws IOException {
+        Description desc = new Description().setProperties(new HashMap<>());
+        Description builderDescription = null;
+        Map<String, Object> dependencies = new HashMap<>();
+        boolean first = true;
+        json.beginObject();
+        while (json.hasNext()) {
+            String field = json.nextName();
+            if (document && field.equals("parents")) {
+                return null;
+            }
+            if (document && field.equals("namespaces")) {
+                if (!first) {
+                    return null;  // values already read were not translated
+                }
+                namespace = new Namespace(readNamespaces(json));
+            } else if (field.equals("dependencies") && json.peek() == JsonToken.BEGIN_OBJECT) {
+                dependencies = readMap(json);
+            } else if (field.equals("builderDescription") && json.peek() == JsonToken.BEGIN_OBJECT) {
+                builderDescription = readDescription(json, false);
+            } else {
+                readField(json, field, desc);
+            }
+            first = false;
+        }
+        json.endObject();
+        if (builderDescription != null || !dependencies.isEmpty()) {
+            desc.setConstruction(new ConstructionImpl(builderDescription, dependencies));
+        }
+        return desc.computeStatus();
+    }
+
+    private void readField(JsonReader json, String field, Description desc) throws IOException {
+        switch (field) {
+            case "type":
+                desc.setType(json.peek() == JsonToken.NULL ? skipNull(json, UNKNOWN_TYPE) : translate(json.nextString()));
+                break;
+            case "properties":
+                if (json.peek() == JsonToken.BEGIN_OBJECT) {
+                    desc.setProperties(readMap(json));
+                } else {
+                    desc.setProperties((Map<String, Object>) readPlain(json));
+                }
+                break;
+            case Description.PRIMARY_SERVICE_NAME:
+                Object service = json.peek() == JsonToken.BEGIN_OBJECT ? readDescription(json, false) : readPlain(json);
+                if (service != null) {
+                    desc.setServiceObject(service);
+                }
+                break;
+            case "interfaces":
+                for (Map.Entry<String, Object> e: readMap(json).entrySet()) {
+                    desc.setInterface(e.getKey(), e.getValue());
+                }
+                break;
+            default:
+                json.skipValue();  // not part of a Description
+        }
+    }
+
+    private <T> T skipNull(JsonReader json, T defaultValue) throws IOException {
+        json.nextNull();
+        return defaultValue;
+    }
+
+    /**
+     * properties or dependencies: nested objects, also within arrays, are Descriptions
+     */
+    private Map<String, Object> readMap(JsonReader json) throws IOException {
+        Map<String, Object> map = new HashMap<>();
+        json.beginObject();
+        while (json.hasNext()) {
+            String key = Symbols.intern(json.nextName());
+            JsonToken token = json.peek();
+            if (token == JsonToken.BEGIN_OBJECT) {
+                map.put(key, readDescription(json, false));
+            } else if (token == JsonToken.BEGIN_ARRAY) {
+                List<Object> list = new ArrayList<>();
+                json.beginArray();
+                while (json.hasNext()) {
+                    list.add(json.peek() == JsonToken.BEGIN_OBJECT ? readDescription(json, false) : readPlain(json));
+                }
+                json.endArray();
+                map.put(key, list);
+            } else {
+                map.put(key, readPlain(json));
+            }
+        }
+        json.endObject();
+        return map;
+    }
+
+    /**
+     * @return the next value as Gson would read it into a Map, with aliases translated
+     */
+    private Object readPlain(JsonReader json) throws IOException {
+        switch (json.peek()) {
+            case BEGIN_OBJECT:
+                Map<String, Object> map = new LinkedHashMap<>();
+                json.beginObject();
+                while (json.hasNext()) {
+                    map.put(Symbols.intern(json.nextName()), readPlain(json));
+                }
+                json.endObject();
+                return map;
+            case BEGIN_ARRAY:
+                List<Object> list = new ArrayList<>();
+                json.beginArray();
+                while (json.hasNext()) {
+                    list.add(readPlain(json));
+                }
+                json.endArray();
+                return list;
+            case STRING:
+                return translate(json.nextString());
+            case NUMBER:
+                return json.nextDouble();
+            case BOOLEAN:
+                return json.nextBoolean();
+            default:
+                json.nextNull();
+                return null;
+        }
+    }
+
+    private String translate(String value) {
+        String t = namespace.translate(value);
+        return t.equals(Behavior.MATCH_ANY) ? Behavior.MATCH_ANY : t;  // use same object ref, as Namespace does
+    }
+}
@@ -1,12 +1,23 @@
 package org.acm.rstaehli.qua.tools;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
 import org.acm.rstaehli.qua.Description;
+import org.acm.rstaehli.qua.HashConsTable;
+import org.acm.rstaehli.qua.Symbols;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Description is a meta object to reflect on and manage the implementation of a service.
@@ -20,28 +31,245 @@ import java.util.*;
  */
 public class Serializer {
 
+    private static final Gson GSON = new Gson();  // thread safe, so shared by all serializers
+
+    private final Map<String, Parsed> parsed = new ConcurrentHashMap<>();  // file path -> tree parsed from it
+    private final Map<String, Resolved> resolved = new ConcurrentHashMap<>();  // file path -> map with parents merged
+    private HashConsTable shared;  // null, or where nested descriptions are interned
+
+    private static class Parsed {
+        final long modified;  // file modification time when parsed
+        final Map<String,Object> tree;
+
+        Parsed(long modified, Map<String,Object> tree) {
+            this.modified = modified;
+            this.tree = tree;
+        }
+    }
+
+    private static class Resolved {
+        final Map<String,Long> stamps;  // modification time of the file and of each ancestor, by path
+        final Map<String,Object> tree;  // parents merged and namespaces translated
+
+        Resolved(Map<String,Long> stamps, Map<String,Object> tree) {
+            this.stamps = stamps;
+            this.tree = tree;
+        }
+
+        boolean isCurrent() {
+            for (Map.Entry<String,Long> e: stamps.entrySet()) {
+                long modified = new File(e.getKey()).lastModified();
+                if (modified == 0 || modified != e.getValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Share equal nested descriptions, e.g. the same dependency repeated across files,
+     * among all descriptions read from now on.
+     * @param table null to stop sharing
+     */
+    public Serializer setHashConsTable(HashConsTable table) {
+        shared = table;
+        return this;
+    }
+
     public Description descriptionFromJsonFile(String directoryPath, String name) throws FileNotFoundException {
-        Map<String,Object> jsonMap = mapFromJsonFile(directoryPath, name);
-        return new Description(jsonMap);
+        File file = jsonFile(directoryPath, name);
+        Description d = isParsed(file) ? null : streamFromJsonFile(file);  // parsed before, so needs no reading
+        if (d == null) {
+            Map<String,Object> jsonMap = mapFromJsonFile(directoryPath, name);
+            d = new Description(jsonMap);
+        }
+        HashConsTable table = shared;
+        return table == null ? d : table.internChildren(d);
+    }
+
+    /**
+     * Build the Description as the file is read, when it has no parents to merge.
+     * The file is read once: if it must be merged, e.g. its first field is
+     * "parents", the text already read is parsed and cached for the map path.
+     * @return the Description, or null if it must be built from the merged map
+     */
+    private Description streamFromJsonFile(File file) throws FileNotFoundException {
+        long modified = file.lastModified();  // before reading, so a later change is noticed
+        String text;
+        try {
+            text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(file.getPath());
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+        try {
+            Description d = new DescriptionReader(GSON).read(new StringReader(text));
+            if (d == null) {
+                parsed.put(file.getPath(), new Parsed(modified, parse(new StringReader(text))));
+            }
+            return d;
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+    }
+
+    private boolean isParsed(File file) {
+        Parsed cached = parsed.get(file.getPath());
+        return cached != null && cached.modified == file.lastModified() && cached.modified != 0;
     }
 
     public Map<String,Object> mapFromJsonFile(String directoryPath, String name) throws FileNotFoundException {
-        Map<String,Object> jsonMap = new Gson().fromJson(new FileReader(Paths.get(directoryPath + name + ".json").toFile()), Map.class);
+        return (Map<String,Object>)mutableCopy(resolve(directoryPath, name, new LinkedHashSet<>()).tree);
+    }
+
+    /**
+     * Merge a file with its parents and translate its namespaces once for as long
+     * as neither it nor any ancestor changes.
+     * @param inheriting names whose parents are being read, to detect an inheritance cycle
+     */
+    private Resolved resolve(String directoryPath, String name, Set<String> inheriting)
+            throws FileNotFoundException {
+        if (!inheriting.add(name)) {
+            throw new IllegalStateException("inheritance cycle: " + String.join(" -> ", inheriting) + " -> " + name);
+        }
+        String path = jsonFile(directoryPath, name).getPath();
+        Resolved cached = resolved.get(path);
+        if (cached != null && cached.isCurrent()) {
+            inheriting.remove(name);
+            return cached;
+        }
+        resolved.remove(path);
+        Parsed own = parsedTree(directoryPath, name);
+        Map<String,Object> jsonMap = (Map<String,Object>)mutableCopy(own.tree);
+        Map<String,Long> stamps = new HashMap<>();
+        stamps.put(path, own.modified);
 
         if (jsonMap.containsKey("parents")) {
             List<String> parentNames = (List<String>)jsonMap.get("parents");
             for (String parent: parentNames) {
-                Map<String,Object> mapParent = mapFromJsonFile(directoryPath, parent);
-                inheritFrom(mapParent, jsonMap);
+                Resolved mapParent = resolve(directoryPath, parent, inheriting);
+                stamps.putAll(mapParent.stamps);
+                inheritFrom((Map<String,Object>)mutableCopy(mapParent.tree), jsonMap);
             }
         }
+        inheriting.remove(name);
 
         // Json file syntax allows "namespaceAliases" field to define aliases used to shorten names
         // Since these can be inherited, must first get parent JSON maps and collect alias definitions
         // so we can translate them wherever they occur.
         Map<String,String> namespaces = getNamespaces(jsonMap);
         (new Namespace(namespaces)).translate(jsonMap);
-        return jsonMap;
+        Resolved merged = new Resolved(stamps, (Map<String,Object>)immutableCopy(jsonMap));
+        resolved.put(path, merged);
+        return merged;
+    }
+
+    /**
+     * Parse a file once for as long as it is unchanged: a parent shared by many
+     * children is read from disk only the first time.
+     * @return unmodifiable tree of the file's JSON, with the modification time it was read at; copy it before making changes
+     */
+    private Parsed parsedTree(String directoryPath, String name) throws FileNotFoundException {
+        File file = jsonFile(directoryPath, name);
+        long modified = file.lastModified();  // before reading, so a later change is noticed
+        Parsed cached = parsed.get(file.getPath());
+        if (cached != null && cached.modified == modified && modified != 0) {
+            return cached;
+        }
+        Map<String,Object> tree;
+        try (Reader reader = new FileReader(file)) {
+            tree = parse(reader);
+        } catch (FileNotFoundException e) {
+            parsed.remove(file.getPath());
+            throw e;
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+        Parsed read = new Parsed(modified, tree);
+        parsed.put(file.getPath(), read);
+        return read;
+    }
+
+    private static Map<String,Object> parse(Reader reader) {
+        return (Map<String,Object>)immutableCopy(GSON.fromJson(reader, Map.class));
+    }
+
+    private static File jsonFile(String directoryPath, String name) {
+        return Paths.get(directoryPath + name + ".json").toFile();
+    }
+
+    /**
+     * Drop what was cached for a file, e.g. because it changed or was removed.
+     * Entries are kept per file path, so without this the caches hold at most
+     * one entry for every file ever read.
+     */
+    public void evict(String directoryPath, String name) {
+        String path = jsonFile(directoryPath, name).getPath();
+        parsed.remove(path);
+        resolved.remove(path);
+    }
+
+    public void evictAll() {
+        parsed.clear();
+        resolved.clear();
+    }
+
+    private static Object immutableCopy(Object value) {
+        if (value instanceof Map) {
+            Map<String,Object> copy = new LinkedHashMap<>();
+            for (Map.Entry<String,Object> e: ((Map<String,Object>)value).entrySet()) {
+                copy.put(Symbols.intern(e.getKey()), immutableCopy(e.getValue()));
+            }
+            return Collections.unmodifiableMap(copy);
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            for (Object o: (List<Object>)value) {
+                copy.add(immutableCopy(o));
+            }
+            return Collections.unmodifiableList(copy);
+        }
+        return value;  // String, Double, Boolean or null
+    }
+
+    private static Object mutableCopy(Object value) {
+        if (value instanceof Map) {
+            Map<String,Object> copy = new LinkedHashMap<>();
+            for (Map.Entry<String,Object> e: ((Map<String,Object>)value).entrySet()) {
+                copy.put(e.getKey(), mutableCopy(e.getValue()));
+            }
+            return copy;
+        }
+        if (value instanceof List) {
+            ArrayList<Object> copy = new ArrayList<>();
+            for (Object o: (List<Object>)value) {
+                copy.add(mutableCopy(o));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    /**
+     * @return names of all files that name inherits from, directly or through its parents.
+     */
+    public Set<String> ancestors(String directoryPath, String name) throws FileNotFoundException {
+        Set<String> found = new LinkedHashSet<>();
+        addAncestors(directoryPath, name, found);
+        return found;
+    }
+
+    private void addAncestors(String directoryPath, String name, Set<String> found) throws FileNotFoundException {
+        Map<String,Object> jsonMap = parsedTree(directoryPath, name).tree;
+        if (jsonMap.containsKey("parents")) {
+            for (String parent: (List<String>)jsonMap.get("parents")) {
+                if (found.add(parent)) {  // each ancestor once, even if inherited twice
+                    addAncestors(directoryPath, parent, found);
+                }
+            }
+        }
     }
 
     private void inheritFrom(Map<String,Object> parent, Map<String, Object> child) {
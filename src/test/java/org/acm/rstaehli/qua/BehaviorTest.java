@@ -9,6 +9,7 @@ import java.util.Map;
 
 import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
 import static org.acm.rstaehli.qua.Behavior.MATCH_ANY;
 import static org.acm.rstaehli.qua.Behavior.UNKNOWN_TYPE;
 
@@ -119,4 +120,88 @@ public class BehaviorTest {
         assertTrue(specialized.stringProperty("emotion").equals("embarassed"));
     }
 
+    @Test
+    public void test_specializeFor_rejectsWithoutCopying() {
+        Map<String, Object> goalProps = new HashMap<>();
+        goalProps.put("color", "red");
+        goalProps.put("coats", 2);
+        Behavior goal = new BehaviorImpl("testType", goalProps);
+
+        final int[] copies = {0};
+        Map<String, Object> props = new HashMap<>();
+        props.put("color", "blue");
+        props.put("coats", 2);
+        assertTrue(counting(props, copies).specializeFor(goal) == null);
+        props.remove("color");
+        assertTrue(counting(props, copies).specializeFor(goal) == null);  // missing property
+        assertEquals(0, copies[0]);
+
+        props.put("color", "red");
+        assertTrue(counting(props, copies).specializeFor(goal).equals(goal));
+        assertTrue(copies[0] > 0);
+    }
+
+    /**
+     * @return behavior counting in copies[0] each read of its properties, as mergeBehavior copies through properties()
+     */
+    private static Behavior counting(Map<String, Object> props, int[] copies) {
+        return new BehaviorImpl("testType", props) {
+            @Override
+            public Map<String, Object> properties() {
+                copies[0]++;
+                return super.properties();
+            }
+        };
+    }
+
+    @Test
+    public void test_specializeFor_sharesProperties() {
+        Map<String, Object> goalProps = new HashMap<>();
+        goalProps.put("color", "red");
+        Behavior goal = new BehaviorImpl("testType", goalProps);
+
+        behavior = new BehaviorImpl("testType");
+        behavior.setProperty("color", "red");
+        behavior.setProperty("size", MATCH_ANY);
+        for (int i = 0; i < 50; i++) {
+            behavior.setProperty("other" + i, i);
+        }
+        Map<String, Object> advertised = behavior.properties();
+        Behavior specialized = behavior.specializeFor(goal);
+        assertTrue(behavior.properties() == advertised);  // candidate unchanged
+        assertEquals(51, specialized.properties().size());  // unmatched wildcard removed
+        assertTrue(!specialized.hasProperty("size"));
+        assertEquals(52, advertised.size());
+
+        try {
+            specialized.properties().put("color", "blue");
+            fail("properties can be modified");
+        } catch (UnsupportedOperationException e) {
+            // shared maps are immutable
+        }
+    }
+
+    @Test
+    public void test_persistentMap() {
+        PersistentMap<String, Object> empty = PersistentMap.empty();
+        PersistentMap<String, Object> map = empty;
+        for (int i = 0; i < 1000; i++) {
+            map = map.plus("key" + i, i);
+        }
+        map = map.plus("Aa", "x").plus("BB", "y");  // same String hash
+        assertEquals(1002, map.size());
+        assertEquals(500, map.get("key500"));
+        assertEquals("y", map.get("BB"));
+        assertTrue(map.plus("key7", 7) == map);
+
+        PersistentMap<String, Object> smaller = map.minus("key7").minus("Aa").minus("missing");
+        assertEquals(1000, smaller.size());
+        assertTrue(!smaller.containsKey("key7") && map.containsKey("key7"));
+        assertEquals("y", smaller.get("BB"));
+
+        Map<String, Object> copy = new HashMap<>(smaller);
+        assertEquals(smaller, copy);
+        assertEquals(copy.hashCode(), smaller.hashCode());
+        assertEquals(0, empty.size());
+    }
 }
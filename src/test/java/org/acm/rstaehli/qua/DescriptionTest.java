@@ -7,11 +7,20 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
 import static org.acm.rstaehli.qua.Behavior.MATCH_ANY;
 
 public class DescriptionTest {
@@ -59,4 +68,533 @@ public class DescriptionTest {
             assertEquals(match.properties().get(key), goal.properties().get(key));
         }
     }
+
+    /**
+     * Repository that takes a while to answer, and counts how many lookups overlap.
+     */
+    private static class SlowRepository extends InMemoryRepository {
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger mostRunning = new AtomicInteger();
+        private final AtomicInteger lookups = new AtomicInteger();
+
+        @Override
+        public Description bestMatch(Description desc) throws NoImplementationFound {
+            lookups.incrementAndGet();
+            mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+                return super.bestMatch(desc);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    private Description typedGoal(String type) {
+        return new Description().setType(type).setProperties(new HashMap<>()).computeStatus();
+    }
+
+    @Test
+    public void test_plan_siblingsConcurrently() throws NoImplementationFound {
+        SlowRepository slowRepo = new SlowRepository();
+        Description builder = describe.namedService("builder", new AbstractPassiveServiceBuilder());
+        Map<String, Object> dependencies = new HashMap<>();
+        for (int i = 0; i < 8; i++) {
+            slowRepo.advertise(describe.typeAndPlan("child" + i, builder));
+            dependencies.put("dependency" + i, typedGoal("child" + i));
+        }
+        slowRepo.advertise(describe.typeAndPlan("parent", builder, dependencies));
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Description parent = typedGoal("parent").provision(slowRepo, pool);
+            assertTrue(parent.isProvisioned());
+            for (Object d: parent.dependencies().values()) {
+                assertTrue(((Description) d).isProvisioned());
+            }
+            assertTrue(slowRepo.mostRunning.get() > 1);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void test_provision_sharedGrandchildOnce() throws NoImplementationFound {
+        SlowRepository slowRepo = new SlowRepository();
+        Description builder = describe.namedService("builder", new AbstractPassiveServiceBuilder());
+        slowRepo.advertise(describe.typeAndPlan("leaf", builder));
+        Description shared = describe.typeAndPlan("shared", builder, Collections.singletonMap("leaf", typedGoal("leaf")));
+        Map<String, Object> dependencies = new HashMap<>();
+        dependencies.put("a", describe.typeAndPlan("a", builder, Collections.singletonMap("shared", shared)));
+        dependencies.put("b", describe.typeAndPlan("b", builder, Collections.singletonMap("shared", shared)));
+        Description root = describe.typeAndPlan("root", builder, dependencies);  // planned by hand, so nothing copied
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            root.provision(slowRepo, pool);
+            assertTrue(root.isProvisioned());
+            assertTrue(((Description) shared.dependencies().get("leaf")).isProvisioned());
+            assertEquals(1, slowRepo.lookups.get());  // leaf planned once, though reached from a and b
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Builds a String service: its own type followed by the services of its dependencies.
+     */
+    private static class ConcatenatingBuilder implements Builder {
+        private final AtomicInteger assembled = new AtomicInteger();
+
+        @Override
+        public void assemble(Description impl) {
+            assembled.incrementAndGet();
+            StringBuilder s = new StringBuilder(impl.type());
+            for (String key: new java.util.TreeSet<>(impl.dependencies().keySet())) {
+                s.append(" ").append(((Description) impl.dependencies().get(key)).service());
+            }
+            impl.setServiceObject(s.toString());
+        }
+        @Override
+        public void start(Description impl) {
+        }
+        @Override
+        public void stop(Description impl) {
+        }
+        @Override
+        public void recycle(Description impl) {
+        }
+    }
+
+    @Test
+    public void test_serviceAsync_assemblesDependenciesFirst() throws InterruptedException, ExecutionException {
+        InMemoryRepository memoryRepo = new InMemoryRepository();
+        ConcatenatingBuilder concatenator = new ConcatenatingBuilder();
+        Description builder = describe.namedService("builder", concatenator);
+        memoryRepo.advertise(describe.typeAndPlan("leaf", builder));
+        Description shared = typedGoal("leaf");
+        Map<String, Object> dependencies = new HashMap<>();
+        dependencies.put("a", shared);
+        dependencies.put("b", shared);
+        dependencies.put("c", typedGoal("leaf"));
+        memoryRepo.advertise(describe.typeAndPlan("root", builder, dependencies));
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Description root = typedGoal("root");
+            CompletableFuture<Object> service = root.serviceAsync(memoryRepo, pool);
+            assertEquals("root leaf leaf leaf", service.get());
+            assertTrue(root.isActive());
+            assertEquals(3, concatenator.assembled.get());  // root and two distinct leaves
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void test_planAsync_noImplementation() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            typedGoal("unknown").planAsync(new InMemoryRepository(), pool).get();
+            fail("expected NoImplementationFound");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NoImplementationFound);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void test_planAsync_sharedByCallers() throws InterruptedException, ExecutionException {
+        SlowRepository slowRepo = new SlowRepository();
+        slowRepo.advertise(describe.typeAndPlan("leaf", describe.namedService("builder", new ConcatenatingBuilder())));
+        Description goal = typedGoal("leaf");
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            CompletableFuture<Description> first = goal.planAsync(slowRepo, pool);
+            CompletableFuture<Description> second = goal.planAsync(slowRepo, pool);
+            assertTrue(first == second);
+            assertTrue(second.get().isPlanned());
+            Description other = typedGoal("leaf");
+            assertTrue(other.provisionAsync(slowRepo, pool) == other.provisionAsync(slowRepo, pool));
+            assertTrue(other.provisionAsync(slowRepo, pool).get().isProvisioned());
+            assertEquals(2, slowRepo.lookups.get());  // once for each goal
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void test_equals_structural() throws NoImplementationFound {
+        Map<String, Object> dependencies = new HashMap<>();
+        dependencies.put("leaf", typedGoal("leaf"));
+        Description builder = describe.namedOnly("builder");
+        Description a = describe.typeAndPlan("root", builder, dependencies);
+        Description b = describe.typeAndPlan("root", builder, new HashMap<>(dependencies));
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        b.setProperty("color", "red");
+        assertTrue(!a.equals(b));
+
+        InMemoryRepository memoryRepo = new InMemoryRepository();
+        memoryRepo.advertise(describe.namedService("single", "value"));
+        memoryRepo.advertise(describe.namedService("single", "value"));
+        assertEquals(1, memoryRepo.implementationsByName("single").size());  // duplicate ignored
+        Description again = describe.namedService("single", "value");
+        memoryRepo.advertise(again);
+        memoryRepo.replace(again, describe.namedService("single", "other"));  // replaces the equal one stored
+        assertEquals(1, memoryRepo.implementationsByName("single").size());
+        assertEquals("other", memoryRepo.implementationByName("single").service());
+    }
+
+    @Test
+    public void test_hashConsTable_sharesNestedDescriptions() {
+        HashConsTable table = new HashConsTable();
+        Map<String, Object> first = new HashMap<>();
+        first.put("leaf", typedGoal("leaf"));
+        Map<String, Object> second = new HashMap<>();
+        second.put("leaf", typedGoal("leaf"));
+        second.put("other", typedGoal("other"));
+        Description a = table.internChildren(describe.typeAndPlan("a", describe.namedOnly("builder"), first));
+        Description b = table.internChildren(describe.typeAndPlan("b", describe.namedOnly("builder"), second));
+
+        assertTrue(a.dependencies().get("leaf") == b.dependencies().get("leaf"));
+        assertTrue(a.construction.builderDescription() == b.construction.builderDescription());
+        assertEquals(3, table.size());  // leaf, other and builder
+        assertTrue(table.intern(typedGoal("other")) == b.dependencies().get("other"));
+    }
+
+    @Test
+    public void test_hashConsTable_buildsCopies() throws NoImplementationFound {
+        InMemoryRepository memoryRepo = new InMemoryRepository();
+        Description builder = describe.namedService("builder", new ConcatenatingBuilder());
+        memoryRepo.advertise(describe.typeAndPlan("leaf", builder));
+        HashConsTable table = new HashConsTable();
+        Description a = table.internChildren(describe.typeAndPlan("a", builder,
+                Collections.singletonMap("leaf", typedGoal("leaf"))));
+        Description shared = (Description) a.dependencies().get("leaf");
+        int hash = shared.hashCode();
+
+        a.activate(memoryRepo);
+        assertEquals("a leaf", a.service());
+        assertTrue(a.dependencies().get("leaf") != shared);
+        assertTrue(!shared.isPlanned());
+        assertEquals(hash, shared.hashCode());
+        assertTrue(table.intern(typedGoal("leaf")) == shared);
+    }
+
+    private Description diamond(InMemoryRepository memoryRepo, Description builder) {
+        memoryRepo.advertise(describe.typeAndPlan("pool", builder).setProperty("size", MATCH_ANY));
+        for (String mid: new String[] {"left", "right"}) {
+            Map<String, Object> dependencies = new HashMap<>();
+            dependencies.put("pool", typedGoal("pool").setProperty("size", 10));  // a goal of its own
+            memoryRepo.advertise(describe.typeAndPlan(mid, builder, dependencies));
+        }
+        Map<String, Object> dependencies = new HashMap<>();
+        dependencies.put("a", typedGoal("left"));
+        dependencies.put("b", typedGoal("right"));
+        memoryRepo.advertise(describe.typeAndPlan("root", builder, dependencies));
+        return typedGoal("root");
+    }
+
+    @Test
+    public void test_activate_sharesEquivalentDependencies() throws NoImplementationFound {
+        InMemoryRepository memoryRepo = new InMemoryRepository();
+        ConcatenatingBuilder concatenator = new ConcatenatingBuilder();
+        Description root = diamond(memoryRepo, describe.namedService("builder", concatenator));
+
+        ActivationContext context = new ActivationContext();
+        root.activate(memoryRepo, context);
+        assertEquals("root left pool right pool", root.service());
+        Description left = (Description) root.dependencies().get("a");
+        Description right = (Description) root.dependencies().get("b");
+        assertTrue(left.dependencies().get("pool") == right.dependencies().get("pool"));
+        assertEquals(4, concatenator.assembled.get());  // root, left, right and one pool
+        assertEquals(1, context.reused());
+    }
+
+    @Test
+    public void test_activate_prototypeNotShared() throws NoImplementationFound {
+        InMemoryRepository memoryRepo = new InMemoryRepository();
+        ConcatenatingBuilder concatenator = new ConcatenatingBuilder();
+        Description root = diamond(memoryRepo, describe.namedService("builder", concatenator));
+
+        ActivationContext context = new ActivationContext().prototype("pool");
+        root.activate(memoryRepo, context);
+        assertEquals(5, concatenator.assembled.get());
+        assertEquals(0, context.reused());
+    }
+
+    /**
+     * Takes a while to assemble, and counts how many assemblies overlap.
+     */
+    private static class SlowBuilder extends ConcatenatingBuilder {
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger mostRunning = new AtomicInteger();
+
+        @Override
+        public void assemble(Description impl) {
+            mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                running.decrementAndGet();
+            }
+            super.assemble(impl);
+        }
+    }
+
+    @Test
+    public void test_activationEngine_independentBranchesConcurrently() throws NoImplementationFound {
+        InMemoryRepository memoryRepo = new InMemoryRepository();
+        SlowBuilder slow = new SlowBuilder();
+        Description builder = describe.namedService("builder", slow);
+        Map<String, Object> dependencies = new HashMap<>();
+        for (int i = 0; i < 4; i++) {
+            memoryRepo.advertise(describe.typeAndPlan("branch" + i, builder,
+                    Collections.singletonMap("leaf", typedGoal("leaf"))));
+            dependencies.put("dependency" + i, typedGoal("branch" + i));
+        }
+        memoryRepo.advertise(describe.typeAndPlan("leaf", builder));
+        memoryRepo.advertise(describe.typeAndPlan("root", builder, dependencies));
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Description root = new ActivationEngine(pool).activate(typedGoal("root"), memoryRepo,
+                    new ActivationContext());
+            assertTrue(root.isActive());
+            assertEquals("root branch0 leaf branch1 leaf branch2 leaf branch3 leaf", root.service());
+            assertEquals(6, ((ConcatenatingBuilder) slow).assembled.get());  // root, 4 branches and the leaf they share
+            assertTrue(slow.mostRunning.get() > 1);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void test_activationEngine_cycle() throws NoImplementationFound {
+        InMemoryRepository memoryRepo = new InMemoryRepository();
+        Description builder = describe.namedService("builder", new ConcatenatingBuilder());
+        memoryRepo.advertise(describe.typeAndPlan("chicken", builder,
+                Collections.singletonMap("from", typedGoal("egg"))));
+        memoryRepo.advertise(describe.typeAndPlan("egg", builder,
+                Collections.singletonMap("from", typedGoal("chicken"))));
+
+        try {
+            new ActivationEngine(Runnable::run).activate(typedGoal("chicken"), memoryRepo);
+            fail("expected a dependency cycle");
+        } catch (IllegalStateException e) {
+            assertEquals("dependency cycle: chicken -> egg -> chicken", e.getMessage());
+        }
+    }
+
+    /**
+     * Counts every lifecycle call.
+     */
+    private static class CountingBuilder extends ConcatenatingBuilder {
+        private final AtomicInteger started = new AtomicInteger();
+        private final AtomicInteger stopped = new AtomicInteger();
+        private final AtomicInteger recycled = new AtomicInteger();
+
+        @Override
+        public void start(Description impl) {
+            started.incrementAndGet();
+        }
+        @Override
+        public void stop(Description impl) {
+            stopped.incrementAndGet();
+        }
+        @Override
+        public void recycle(Description impl) {
+            recycled.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void test_instancePool_reusesReleasedService() throws NoImplementationFound {
+        InMemoryRepository memoryRepo = new InMemoryRepository();
+        CountingBuilder counter = new CountingBuilder();
+        memoryRepo.advertise(describe.typeAndPlan("parser", describe.namedService("builder", counter)));
+        InstancePool pool = new InstancePool(1);
+
+        Description first = pool.activate(typedGoal("parser"), memoryRepo);
+        assertTrue(first.isActive());
+        pool.release(first);
+        assertTrue(!first.isActive() && first.isAssembled());
+        assertEquals(1, counter.stopped.get());
+
+        Description second = pool.activate(typedGoal("parser"), memoryRepo);
+        assertTrue(second == first);
+        assertEquals(1, ((ConcatenatingBuilder) counter).assembled.get());  // started again, not rebuilt
+        assertEquals(2, counter.started.get());
+
+        Description third = pool.activate(typedGoal("parser"), memoryRepo);
+        assertTrue(third != first);
+        assertEquals(2, ((ConcatenatingBuilder) counter).assembled.get());
+        pool.release(second);
+        pool.release(third);  // beyond the bound of one parser
+        assertEquals(1, pool.size());
+        assertEquals(1, counter.recycled.get());
+        assertTrue(!third.isAssembled() && third.service() == null);
+        assertEquals(1, pool.hits());
+
+        pool.clear();
+        assertEquals(0, pool.size());
+        assertEquals(2, counter.recycled.get());
+    }
+
+    @Test
+    public void test_instancePool_resetsDependencies() throws NoImplementationFound {
+        InMemoryRepository memoryRepo = new InMemoryRepository();
+        CountingBuilder counter = new CountingBuilder();
+        Description builder = describe.namedService("builder", counter);
+        memoryRepo.advertise(describe.typeAndPlan("lexer", builder));
+        Description parserImpl = describe.typeAndPlan("parser", builder,
+                Collections.singletonMap("lexer", typedGoal("lexer")));
+        memoryRepo.advertise(parserImpl);
+        InstancePool pool = new InstancePool(1);
+
+        Description first = pool.activate(typedGoal("parser"), memoryRepo);
+        Description lexer = (Description) first.dependencies().get("lexer");
+        assertTrue(first.isActive() && lexer.isActive());
+        pool.release(first);
+        assertTrue(!lexer.isActive() && lexer.isAssembled());
+        assertEquals(2, counter.stopped.get());
+
+        Description readvertised = describe.typeAndPlan("parser", builder,
+                Collections.singletonMap("lexer", typedGoal("lexer")));
+        memoryRepo.replace(parserImpl, readvertised);  // equal, so its services are still pooled
+        Description second = pool.activate(typedGoal("parser"), memoryRepo);
+        assertTrue(second == first && lexer.isActive());
+        assertEquals(2, ((ConcatenatingBuilder) counter).assembled.get());
+
+        pool.release(second);
+        pool.clear();
+        assertEquals(2, counter.recycled.get());  // parser and its lexer
+        assertTrue(!lexer.isAssembled());
+    }
+
+    @Test
+    public void test_activateAsync_restartsDeactivatedDependencies() throws Exception {
+        InMemoryRepository memoryRepo = new InMemoryRepository();
+        CountingBuilder counter = new CountingBuilder();
+        Description builder = describe.namedService("builder", counter);
+        memoryRepo.advertise(describe.typeAndPlan("lexer", builder));
+        memoryRepo.advertise(describe.typeAndPlan("parser", builder,
+                Collections.singletonMap("lexer", typedGoal("lexer"))));
+
+        Description parser = typedGoal("parser").assemble(memoryRepo).activate(memoryRepo);
+        Description lexer = (Description) parser.dependencies().get("lexer");
+        parser.deactivate();
+        assertTrue(!lexer.isActive() && lexer.isAssembled());
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            assertTrue(parser.activateAsync(memoryRepo, pool).get() == parser);
+        } finally {
+            pool.shutdown();
+        }
+        assertTrue(parser.isActive() && lexer.isActive());
+        assertEquals(4, counter.started.get());  // each started, stopped and started again
+        assertEquals(2, ((ConcatenatingBuilder) counter).assembled.get());
+    }
+
+    @Test
+    public void test_warmStandby_takesActiveService() throws NoImplementationFound {
+        InMemoryRepository memoryRepo = new InMemoryRepository();
+        CountingBuilder counter = new CountingBuilder();
+        Description builder = describe.namedService("builder", counter);
+        memoryRepo.advertise(describe.typeAndPlan("parser", builder));
+        memoryRepo.advertise(describe.typeAndPlan("stub", builder));
+        WarmStandby standby = new WarmStandby(memoryRepo, Runnable::run, 2);
+
+        standby.warm(Collections.singletonList(typedGoal("parser"))).join();
+        assertEquals(2, standby.ready(typedGoal("parser")));
+        assertEquals(2, counter.started.get());
+
+        Description parser = standby.take(typedGoal("parser"));
+        assertTrue(parser.isActive());
+        assertEquals("parser", parser.service());
+        assertEquals(1, standby.hits());
+        assertEquals(2, standby.ready(typedGoal("parser")));  // replaced in the background
+        assertEquals(3, ((ConcatenatingBuilder) counter).assembled.get());
+
+        assertEquals("stub", standby.service(typedGoal("stub")));  // not warm: activated on this thread
+        standby.take(typedGoal("stub"));
+        assertEquals(2, standby.misses());
+        assertEquals("stub", standby.hotGoals(1).get(0).type());
+
+        standby.close();
+        assertEquals(0, standby.ready(typedGoal("parser")));
+        assertEquals(2, counter.recycled.get());
+    }
+
+    @Test
+    public void test_warmStandby_buildsDependenciesPerService() throws NoImplementationFound {
+        InMemoryRepository memoryRepo = new InMemoryRepository();
+        CountingBuilder counter = new CountingBuilder();
+        Description builder = describe.namedService("builder", counter);
+        memoryRepo.advertise(describe.typeAndPlan("lexer", builder));
+        Description lexer = typedGoal("lexer");
+        memoryRepo.advertise(describe.typeAndPlan("parser", builder, Collections.singletonMap("lexer", lexer)));
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        WarmStandby standby = new WarmStandby(memoryRepo, pool, 4);
+        try {
+            standby.warm(typedGoal("parser")).join();
+            assertEquals(4, standby.ready(typedGoal("parser")));
+            assertEquals(8, ((ConcatenatingBuilder) counter).assembled.get());  // a lexer for each parser
+            assertTrue(!lexer.isPlanned());
+
+            Set<Object> lexers = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (int i = 0; i < 4; i++) {
+                Description parser = standby.take(typedGoal("parser"));
+                assertEquals("parser lexer", parser.service());
+                lexers.add(parser.dependencies().get("lexer"));
+            }
+            assertEquals(4, lexers.size());
+            assertTrue(!lexers.contains(lexer));
+        } finally {
+            standby.close();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void test_copy_buildsSeparately() throws NoImplementationFound {
+        InMemoryRepository memoryRepo = new InMemoryRepository();
+        ConcatenatingBuilder concatenator = new ConcatenatingBuilder();
+        Description root = diamond(memoryRepo, describe.namedService("builder", concatenator));
+        root.plan(memoryRepo);
+
+        Description copy = root.copy();
+        assertEquals(root, copy);
+        assertTrue(copy.dependencies().get("a") != root.dependencies().get("a"));
+        assertTrue(copy.construction.builderDescription() == root.construction.builderDescription());
+        copy.assemble(memoryRepo);
+        assertTrue(copy.isAssembled() && !root.isAssembled());
+    }
+
+    @Test
+    public void test_plan_copiesImplementationDependencies() throws NoImplementationFound {
+        InMemoryRepository memoryRepo = new InMemoryRepository();
+        Description builder = describe.namedService("builder", new ConcatenatingBuilder());
+        memoryRepo.advertise(describe.typeAndPlan("leaf", builder));
+        Description leaf = typedGoal("leaf");
+        Description impl = describe.typeAndPlan("root", builder, Collections.singletonMap("leaf", leaf));
+        memoryRepo.advertise(impl);
+
+        Description first = typedGoal("root").plan(memoryRepo);
+        Description second = typedGoal("root").plan(memoryRepo);
+        assertTrue(impl.dependencies().get("leaf") == leaf);
+        assertTrue(!leaf.isPlanned());
+        Object firstLeaf = first.dependencies().get("leaf");
+        Object secondLeaf = second.dependencies().get("leaf");
+        assertTrue(firstLeaf != leaf && secondLeaf != leaf && firstLeaf != secondLeaf);
+        assertTrue(((Description) firstLeaf).isPlanned() && ((Description) secondLeaf).isPlanned());
+    }
 }
@@ -0,0 +1,167 @@
+package org.acm.rstaehli.qua;
+
+import org.acm.rstaehli.qua.exceptions.NoImplementationFound;
+import org.acm.rstaehli.qua.tools.Describer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+public class FileBasedRepositoryTest {
+    private FileBasedRepository repo;
+    private String dir;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.getRoot().getPath() + File.separator;
+        repo = new FileBasedRepository(dir);
+    }
+
+    private void write(String name, String json) throws IOException {
+        Files.write(new File(dir, name + ".json").toPath(), json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void test_implementationsByName_missRemembered() throws IOException, NoImplementationFound {
+        assertEquals(0, repo.implementationsByName("optional").size());
+        write("optional", "{ \"serviceObject\": \"late\" }");
+        assertEquals(0, repo.implementationsByName("optional").size());  // listing still trusted
+
+        repo.setCacheTimeToLive(0);
+        assertTrue(repo.implementationByName("optional").service().equals("late"));
+    }
+
+    @Test
+    public void test_implementationsByName_readsFileOnlyWhenChanged() throws IOException, NoImplementationFound {
+        repo.setCacheTimeToLive(0);
+        write("counter", "{ \"serviceObject\": \"one\" }");
+        File file = new File(dir, "counter.json");
+        file.setLastModified(1000000L);
+        Description first = repo.implementationByName("counter");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, repo.implementationsByName("counter").size());
+            assertTrue(repo.implementationByName("counter") == first);  // not read again
+        }
+
+        write("counter", "{ \"serviceObject\": \"two\" }");
+        file.setLastModified(2000000L);
+        assertEquals(1, repo.implementationsByName("counter").size());
+        assertTrue(repo.implementationByName("counter").service().equals("two"));
+
+        assertTrue(file.delete());
+        assertEquals(0, repo.implementationsByName("counter").size());
+    }
+
+    private static class CountingBuilder extends AbstractPassiveServiceBuilder {
+        final AtomicInteger assembled = new AtomicInteger();
+
+        @Override
+        public void assemble(Description impl) {
+            assembled.incrementAndGet();
+            try {
+                Thread.sleep(200);  // long enough for the other lookup to miss too
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            impl.setServiceObject("built");
+        }
+    }
+
+    @Test
+    public void test_implementationsByName_concurrentMissesActivateOnce() throws Exception {
+        CountingBuilder builder = new CountingBuilder();
+        Describer describe = new Describer(new HashMap<>());
+        repo.advertise(describe.typedPlan("counted", BehaviorImpl.ANY_PROPERTIES, describe.namedService("builder", builder), null));
+        write("counted", "{ \"type\": \"counted\" }");  // planned from the advertised implementation
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<Description> first = pool.submit(() -> repo.implementationByName("counted"));
+            Future<Description> second = pool.submit(() -> repo.implementationByName("counted"));
+            assertTrue(first.get() == second.get());
+            assertEquals("built", first.get().service());
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(1, builder.assembled.get());
+    }
+
+    @Test
+    public void test_preload_readsAllFilesInParallel() throws IOException, NoImplementationFound {
+        write("base", "{ \"serviceObject\": \"shared\" }");
+        for (int i = 0; i < 20; i++) {
+            write("child" + i, "{ \"parents\": [\"base\"] }");
+        }
+        write("unplanned", "{ \"type\": \"noKnownType\" }");
+        write("broken", "{ \"type\": ");
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        PreloadReport report;
+        try {
+            report = repo.preload(pool);
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(23, report.files());
+        assertEquals(21, report.loaded());
+        assertEquals(23, report.nanosByName().size());
+        assertTrue(report.failures().get("unplanned") instanceof NoImplementationFound);
+        assertTrue(report.failures().containsKey("broken"));
+
+        new File(dir, "child7.json").delete();  // already loaded, so not read again
+        assertEquals("shared", repo.implementationByName("child7").service());
+    }
+
+    private Object serviceWithin(String name, Object expected, long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        Object service = null;
+        while (System.currentTimeMillis() < deadline) {
+            service = null;
+            for (Description d: repo.implementationsByName(name)) {
+                service = d.service();
+            }
+            if (expected == null ? service == null : expected.equals(service)) {
+                break;
+            }
+            Thread.sleep(20);
+        }
+        return service;
+    }
+
+    @Test
+    public void test_startWatching_reloadsChangedFilesAndChildren() throws Exception {
+        write("base", "{ \"serviceObject\": \"one\" }");
+        write("child", "{ \"parents\": [\"base\"] }");
+        repo.startWatching();
+        try {
+            assertEquals("one", repo.implementationByName("base").service());
+            assertEquals("one", repo.implementationByName("child").service());
+
+            write("base", "{ \"serviceObject\": \"two\" }");
+            assertEquals("two", serviceWithin("child", "two", 10000));
+            assertEquals("two", serviceWithin("base", "two", 10000));
+            assertEquals(1, repo.implementationsByName("child").size());
+
+            assertTrue(new File(dir, "child.json").delete());
+            assertEquals(null, serviceWithin("child", null, 10000));
+        } finally {
+            repo.stopWatching();
+        }
+    }
+}
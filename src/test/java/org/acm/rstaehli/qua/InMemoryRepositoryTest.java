@@ -0,0 +1,320 @@
+package org.acm.rstaehli.qua;
+
+import org.acm.rstaehli.qua.exceptions.NoImplementationFound;
+import org.acm.rstaehli.qua.tools.Describer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+import static org.acm.rstaehli.qua.Behavior.MATCH_ANY;
+
+public class InMemoryRepositoryTest {
+    private InMemoryRepository repo;
+    private Describer describe;
+    private Description builder;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws IOException {
+        repo = new InMemoryRepository();
+        describe = new Describer(new HashMap<>());
+        builder = describe.namedService("builder", new AbstractPassiveServiceBuilder());
+    }
+
+    private Description impl(String type, String color) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("color", color);
+        return describe.typedPlan(type, properties, builder, null);
+    }
+
+    private Description goal(String type, String color) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("color", color);
+        return describe.typeAndProperties(type, properties);
+    }
+
+    @Test
+    public void test_candidatesFor_narrowsByPropertyValue() {
+        for (int i = 0; i < 100; i++) {
+            repo.advertise(impl("paint", "color" + i));
+        }
+        repo.advertise(impl("paint", MATCH_ANY));
+        repo.advertise(describe.typedPlan("paint", BehaviorImpl.ANY_PROPERTIES, builder, null));
+
+        assertEquals(102, repo.implementationsByType("paint").size());
+        assertEquals(3, repo.candidatesFor(goal("paint", "color7")).size());
+        assertEquals(2, repo.candidatesFor(goal("paint", "purple")).size());
+        assertEquals(0, repo.candidatesFor(goal("varnish", "color7")).size());
+    }
+
+    @Test
+    public void test_withdraw_removesFromIndex() {
+        Description red = impl("paint", "red");
+        Description any = impl("paint", MATCH_ANY);
+        repo.advertise(red);
+        repo.advertise(any);
+        repo.advertise(impl("paint", "red"));
+
+        repo.withdraw(red);
+        assertEquals(2, repo.implementationsByType("paint").size());
+        List<Description> candidates = new ArrayList<>(repo.candidatesFor(goal("paint", "red")));
+        assertEquals(2, candidates.size());
+        assertTrue(candidates.get(0) == any);  // still in advertised order
+
+        repo.withdraw(any);
+        assertEquals(0, repo.candidatesFor(goal("paint", "blue")).size());
+        assertEquals(1, repo.candidatesFor(goal("paint", "red")).size());
+        repo.withdraw(candidates.get(1));
+        assertEquals(0, repo.implementationsByType("paint").size());
+
+        repo.advertise(any);
+        repo.advertise(any);  // the same instance twice
+        repo.withdraw(any);
+        assertEquals(1, repo.implementationsByType("paint").size());
+        repo.withdraw(any);
+        assertEquals(0, repo.implementationsByType("paint").size());
+    }
+
+    @Test
+    public void test_bestMatch_keepsAdvertisedOrder() throws NoImplementationFound {
+        repo.advertise(impl("paint", MATCH_ANY));
+        repo.advertise(impl("paint", "red"));
+
+        List<Description> matches = repo.implementationsMatching(goal("paint", "red"));
+        assertEquals(2, matches.size());
+        Description best = repo.bestMatch(goal("paint", "red"));
+        assertTrue(best.stringProperty("color").equals("red"));
+        assertTrue(repo.bestMatch(goal("paint", "blue")).stringProperty("color").equals("blue"));
+    }
+
+    @Test
+    public void test_advertise_concurrentWithLookup() throws InterruptedException, ExecutionException {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            tasks.add(pool.submit(() -> {
+                for (int i = 0; i < 250; i++) {
+                    repo.advertise(impl("paint", "color" + (i % 10)));
+                    repo.advertise(impl("paint" + thread, "red"));
+                }
+            }));
+            tasks.add(pool.submit(() -> {
+                for (int i = 0; i < 250; i++) {
+                    for (Description d: repo.implementationsMatching(goal("paint", "color3"))) {
+                        assertTrue(d.stringProperty("color").equals("color3"));
+                    }
+                }
+            }));
+        }
+        for (Future<?> task: tasks) {
+            task.get();  // rethrows any failed assertion
+        }
+        pool.shutdown();
+        assertEquals(1000, repo.implementationsByType("paint").size());
+        assertEquals(100, repo.implementationsMatching(goal("paint", "color3")).size());
+        assertEquals(250, repo.implementationsByType("paint2").size());
+    }
+
+    @Test
+    public void test_bestMatch_planCache() throws NoImplementationFound {
+        PlanCache cache = new PlanCache(2);
+        repo.setPlanCache(cache);
+        repo.advertise(impl("paint", MATCH_ANY));
+
+        Description first = repo.bestMatch(goal("paint", "red"));
+        assertTrue(repo.bestMatch(goal("paint", "red")) == first);
+        assertEquals(1, cache.hits());
+
+        repo.bestMatch(goal("paint", "blue"));
+        repo.bestMatch(goal("paint", "green"));
+        assertEquals(2, cache.size());  // least recently used "red" evicted
+        assertTrue(repo.bestMatch(goal("paint", "red")) != first);
+
+        repo.advertise(impl("varnish", "clear"));
+        assertEquals(2, cache.size());
+        repo.advertise(impl("paint", "red"));
+        assertEquals(0, cache.size());
+
+        GoalKey key = GoalKey.of(goal("paint", "red"));
+        long version = cache.version("paint");
+        cache.invalidate("paint");  // advertised while the plan was computed
+        cache.put(key, first, version);
+        assertTrue(cache.get(key) == null);
+    }
+
+    @Test
+    public void test_saveSnapshot_loadSnapshot() throws IOException, NoImplementationFound {
+        Description builderRef = describe.namedOnly("builderRef");  // resolved by name when planned
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("color", MATCH_ANY);
+        properties.put("coats", 2);
+        properties.put("ratio", 0.5);
+        properties.put("finishes", Arrays.asList("gloss", "matte"));
+        properties.put("primer", describe.type("primer"));
+        repo.advertise(describe.typedPlan("paint", properties, builderRef, null));
+        repo.advertise(describe.typedPlan("paint", BehaviorImpl.ANY_PROPERTIES, builderRef, null));
+        repo.advertise(describe.namedService("answer", "42"));
+        repo.advertise(impl("paint", "red"));  // builder service is a Java object, left out
+
+        Path file = folder.getRoot().toPath().resolve("catalog.snapshot");
+        assertEquals(3, repo.saveSnapshot(file));
+
+        InMemoryRepository loaded = new InMemoryRepository();
+        assertEquals(3, loaded.loadSnapshot(file));
+        assertEquals(2, loaded.implementationsByType("paint").size());
+        assertEquals("42", loaded.implementationByName("answer").service());
+
+        Description first = loaded.implementationsByType("paint").iterator().next();
+        assertTrue(first.properties().get("color") == MATCH_ANY);
+        assertEquals(2, first.properties().get("coats"));
+        assertEquals(0.5, first.properties().get("ratio"));
+        assertEquals(Arrays.asList("gloss", "matte"), first.properties().get("finishes"));
+        assertEquals("primer", ((Description) first.properties().get("primer")).type());
+        assertTrue(first.isPlanned());
+
+        Description blue = loaded.bestMatch(goal("paint", "blue"));
+        assertEquals("blue", blue.stringProperty("color"));
+    }
+
+    @Test
+    public void test_implementationsMatching_compiledGoal() {
+        Map<String, Object> numbered = new HashMap<>();
+        numbered.put("color", "red");
+        numbered.put("coats", 2);
+        repo.advertise(describe.typedPlan("paint", numbered, builder, null));
+        repo.advertise(impl("paint", "red"));
+        repo.advertise(impl("paint", MATCH_ANY));
+        repo.advertise(describe.typedPlan("paint", BehaviorImpl.ANY_PROPERTIES, builder, null));
+
+        Map<String, Object> required = new HashMap<>();
+        required.put("color", "red");
+        required.put("coats", 2);
+        CompiledGoal goal = CompiledGoal.of(describe.typeAndProperties("paint", required));
+        for (int i = 0; i < 2; i++) {  // reusable
+            List<Description> matches = repo.implementationsMatching(goal);
+            assertEquals(2, matches.size());  // the others lack coats
+            assertEquals(2, matches.get(0).properties().get("coats"));
+            assertEquals(repo.implementationsMatching(goal.goal()).size(), matches.size());
+        }
+        assertTrue(CompiledGoal.of(goal("varnish", "red")).matchFor(repo.implementationsByType("paint")
+                .iterator().next()) == null);
+    }
+
+    private Description withLatency(Description d, double latency) {
+        Map<String, Object> errors = new HashMap<>();
+        errors.put("latency", latency);
+        return d.setQuality(new QualityImpl().setAllowances(errors));
+    }
+
+    @Test
+    public void test_bestMatch_highestUtility() throws NoImplementationFound {
+        repo.advertise(withLatency(impl("store", "blue"), 50));
+        repo.advertise(withLatency(impl("store", "blue"), 10));
+        repo.advertise(withLatency(impl("store", "blue"), 200));
+        repo.advertise(impl("store", "blue"));  // no estimate
+        Map<String, Object> allowed = new HashMap<>();
+        allowed.put("latency", 100);
+        Description goal = goal("store", "blue").setQuality(new QualityImpl()
+                .setErrorDimensions(Arrays.asList("latency"))
+                .setAllowances(allowed)
+                .setRequiredUtility(0.1f));
+
+        Description best = repo.bestMatch(goal);
+        assertEquals(10.0, ((QualityImpl) best.quality()).allowances.get("latency"));
+        List<Description> ranked = repo.bestMatches(goal, 5);
+        assertEquals(2, ranked.size());  // 200 exceeds the allowance, no estimate scores 0
+        assertEquals(50.0, ((QualityImpl) ranked.get(1).quality()).allowances.get("latency"));
+        assertEquals(1, repo.bestMatches(goal, 1).size());
+        assertTrue(repo.bestMatch(goal("store", "blue")).quality() == repo.implementationsByType("store")
+                .iterator().next().quality());  // without a quality, first advertised
+    }
+
+    @Test
+    public void test_bestMatch_adaptsToObservedLatency() throws NoImplementationFound {
+        AtomicLong now = new AtomicLong();
+        long halfLife = TimeUnit.SECONDS.toNanos(1);
+        LatencyMonitor monitor = new LatencyMonitor(halfLife, 0.5, now::get);
+        repo.setRanking(new QualityRanking(monitor));
+        Description first = withLatency(impl("store", "blue"), 1);  // stated, but not what is observed
+        Description second = impl("store", "blue");
+        repo.advertise(first);
+        repo.advertise(second);
+        Description goal = goal("store", "blue").setQuality(new QualityImpl()
+                .setErrorDimensions(Arrays.asList(LatencyMonitor.LATENCY)));
+
+        for (int i = 0; i < 10; i++) {
+            monitor.record(first, LatencyMonitor.LATENCY, TimeUnit.MILLISECONDS.toNanos(50));
+            monitor.record(second, LatencyMonitor.LATENCY, TimeUnit.MILLISECONDS.toNanos(5));
+        }
+        assertTrue(repo.bestMatch(goal).implementation() == second);
+
+        now.addAndGet(10 * halfLife);  // old observations now count 1/1024
+        for (int i = 0; i < 10; i++) {
+            monitor.record(first, LatencyMonitor.LATENCY, TimeUnit.MILLISECONDS.toNanos(5));
+            monitor.record(second, LatencyMonitor.LATENCY, TimeUnit.MILLISECONDS.toNanos(50));
+        }
+        assertTrue(repo.bestMatch(goal).implementation() == first);
+        assertTrue(Math.abs(monitor.estimate(first, LatencyMonitor.LATENCY) - 5) < 5 * 0.25);
+    }
+
+    @Test
+    public void test_latencyMonitor_timedBuilder() throws NoImplementationFound {
+        LatencyMonitor monitor = new LatencyMonitor();
+        Builder storeBuilder = new AbstractPassiveServiceBuilder() {
+            @Override
+            public void assemble(Description impl) {
+                impl.setServiceObject("store");
+            }
+        };
+        Description timedBuilder = describe.namedService("timed", monitor.timed(storeBuilder));
+        Description impl = describe.typedPlan("store", new HashMap<>(), timedBuilder, null);
+        repo.advertise(impl);
+
+        Description service = new Description().setType("store").setProperties(new HashMap<>()).computeStatus();
+        service.assemble(repo);
+        assertTrue(service.implementation() == impl);
+        assertTrue(monitor.estimate(impl, LatencyMonitor.ASSEMBLE) != null);
+        assertTrue(monitor.estimate(impl, LatencyMonitor.LATENCY) == null);
+    }
+
+    @Test
+    public void test_bestMatch_stopsAtFirstMatch() throws IOException, NoImplementationFound {
+        Description builderRef = describe.namedOnly("builderRef");
+        for (int i = 0; i < 30; i++) {
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("color", MATCH_ANY);
+            properties.put("coat", i);
+            repo.advertise(describe.typedPlan("paint", properties, builderRef, null));
+        }
+        Path file = folder.getRoot().toPath().resolve("catalog.snapshot");
+        repo.saveSnapshot(file);
+        MappedRepository mapped = new MappedRepository(file, 100);
+
+        assertEquals(0, mapped.bestMatch(goal("paint", "red")).properties().get("coat"));
+        assertEquals(1, mapped.decodes());  // only the first candidate was read
+        assertEquals(3, mapped.implementationsMatching(goal("paint", "red"), 3).size());
+        assertEquals(3, mapped.decodes());
+        assertEquals(30, mapped.matching(goal("paint", "red")).count());
+        assertEquals(2, repo.implementationsMatching(goal("paint", "red"), 2).size());
+    }
+}
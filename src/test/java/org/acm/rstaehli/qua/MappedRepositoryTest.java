@@ -0,0 +1,111 @@
+package org.acm.rstaehli.qua;
+
+import org.acm.rstaehli.qua.exceptions.NoImplementationFound;
+import org.acm.rstaehli.qua.tools.Describer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+import static org.acm.rstaehli.qua.Behavior.MATCH_ANY;
+
+public class MappedRepositoryTest {
+    private InMemoryRepository repo;
+    private Describer describe;
+    private Description builderRef;
+    private Path file;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws IOException {
+        repo = new InMemoryRepository();
+        describe = new Describer(new HashMap<>());
+        builderRef = describe.namedOnly("builderRef");  // resolved by name when planned
+        file = folder.getRoot().toPath().resolve("catalog.snapshot");
+    }
+
+    private Description impl(String type, Object color) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("color", color);
+        return describe.typedPlan(type, properties, builderRef, null);
+    }
+
+    private Description goal(String type, String color) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("color", color);
+        return describe.typeAndProperties(type, properties);
+    }
+
+    @Test
+    public void test_decodesOnLookup() throws IOException, NoImplementationFound {
+        for (int i = 0; i < 50; i++) {
+            repo.advertise(impl("paint" + (i % 5), "color" + i));
+        }
+        repo.advertise(describe.namedService("answer", "42"));
+        repo.saveSnapshot(file);
+
+        MappedRepository mapped = new MappedRepository(file, 20);
+        assertEquals(51, mapped.size());
+        assertEquals(0, mapped.decodes());
+
+        assertEquals(10, mapped.implementationsByType("paint3").size());
+        assertEquals(10, mapped.decodes());
+        mapped.implementationsByType("paint3");
+        assertEquals(10, mapped.decodes());  // still cached
+
+        mapped.implementationsByType("paint1");
+        mapped.implementationsByType("paint2");
+        mapped.implementationsByType("paint3");
+        assertEquals(40, mapped.decodes());  // paint3 was evicted
+
+        assertEquals("42", mapped.implementationByName("answer").service());
+        mapped.advertise(describe.typedPlan("paint3", new HashMap<>(), builderRef, null));
+        assertEquals(11, mapped.implementationsByType("paint3").size());
+        assertEquals("color8", mapped.bestMatch(goal("paint3", "color8")).stringProperty("color"));
+    }
+
+    @Test
+    public void test_bestMatch_decodesOnlyEntriesThatMayMatch() throws IOException, NoImplementationFound {
+        for (int i = 0; i < 20; i++) {
+            repo.advertise(impl("paint", "color" + i));
+        }
+        repo.advertise(impl("paint", 7));  // not a string, so only matching can reject it
+        repo.advertise(impl("paint", MATCH_ANY));
+        repo.saveSnapshot(file);
+        MappedRepository mapped = new MappedRepository(file, 100);
+
+        assertEquals("color12", mapped.bestMatch(goal("paint", "color12")).stringProperty("color"));
+        assertEquals(1, mapped.decodes());
+        assertEquals(2, mapped.matching(goal("paint", "color3")).count());
+        assertEquals(4, mapped.decodes());  // color3, 7 and MATCH_ANY read
+        assertEquals(1, mapped.bestMatches(goal("paint", "other"), 5).size());
+        assertEquals(4, mapped.decodes());
+    }
+
+    @Test
+    public void test_implementationKey_survivesEviction() throws IOException, NoImplementationFound {
+        repo.advertise(impl("paint", "red"));
+        repo.advertise(impl("ink", "red"));
+        repo.saveSnapshot(file);
+        MappedRepository mapped = new MappedRepository(file, 1);
+
+        Description first = mapped.implementationsByType("paint").iterator().next();
+        mapped.implementationsByType("ink");  // evicts paint
+        Description second = mapped.implementationsByType("paint").iterator().next();
+        assertTrue(first != second);
+        assertEquals(first.implementationKey(), second.implementationKey());
+
+        LatencyMonitor monitor = new LatencyMonitor();
+        monitor.record(first, LatencyMonitor.LATENCY, 1000000);
+        assertTrue(monitor.estimate(second, LatencyMonitor.LATENCY) != null);
+    }
+}
@@ -1,17 +1,27 @@
 package org.acm.rstaehli.qua.tools;
 
+import org.acm.rstaehli.qua.Behavior;
 import org.acm.rstaehli.qua.FileBasedRepository;
 import org.acm.rstaehli.qua.Repository;
+import org.acm.rstaehli.qua.Symbols;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.acm.rstaehli.qua.Description;
 import org.acm.rstaehli.qua.exceptions.NoImplementationFound;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
 
 public class SerializerTest {
     private Describer describe;
@@ -19,6 +29,9 @@ public class SerializerTest {
     private String dir;
     private Serializer serializer;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Before
     public void setUp() throws IOException {
         describe = new Describer(null);
@@ -105,4 +118,90 @@ public class SerializerTest {
         assertTrue(desc.properties().get("descriptionProp") instanceof Description);
     }
 
+    @Test
+    public void test_json_streamedSameAsMap() throws Exception {
+        desc = serializer.descriptionFromJsonFile(dir, "nestedDependencies");
+        Description fromMap = new Description(serializer.mapFromJsonFile(dir, "nestedDependencies"));
+        for (Description d: Arrays.asList(desc, fromMap)) {
+            assertTrue(d.type().equals("http://example.org/pipeline"));
+            assertTrue(d.isPlanned());
+            assertTrue(d.properties().get("color") == Behavior.MATCH_ANY);
+            List<Object> stages = (List<Object>)d.properties().get("stages");
+            assertTrue(((Description)stages.get(0)).type().equals("http://example.org/stage"));
+            assertTrue(stages.get(1).equals("http://example.org/plain"));
+            assertTrue((Double)d.dependencies().get("count") == 2.0);
+            Description source = (Description)d.dependencies().get("source");
+            assertTrue(source.dependencies().get("path").equals("http://example.org/data"));
+        }
+    }
+
+    @Test
+    public void test_json_symbolsInterned() throws Exception {
+        desc = serializer.descriptionFromJsonFile(dir, "typeAndProperties");  // read from tokens
+        Description merged = serializer.descriptionFromJsonFile(dir, "extendedProperties");  // read from map
+        assertTrue(desc.type() == merged.type());
+        for (String key: desc.properties().keySet()) {
+            assertTrue(key == Symbols.intern(new String(key)));
+        }
+        Description translated = serializer.descriptionFromJsonFile(dir, "nestedDependencies");
+        assertTrue(translated.type() == Symbols.intern("http://example.org/pipeline"));
+    }
+
+    @Test
+    public void test_json_parentReadOnce() throws Exception {
+        Description first = serializer.descriptionFromJsonFile(dir, "extendedProperties");
+        first.setProperty("stringProp", "changed");
+        desc = serializer.descriptionFromJsonFile(dir, "multiLevelInheritance");
+        assertTrue(desc.properties().get("stringProp").equals("value"));  // cached parent not modified by use
+        assertTrue(desc.properties().get("newProperty1").equals("value99"));
+    }
+
+    private File write(String name, String json, long modified) throws IOException {
+        File file = new File(folder.getRoot(), name + ".json");
+        Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        assertTrue(file.setLastModified(modified));
+        return file;
+    }
+
+    @Test
+    public void test_json_resolvedUntilAncestorChanges() throws Exception {
+        String tmp = folder.getRoot().getPath() + File.separator;
+        write("parent", "{ \"namespaces\": { \"ex\": \"http://example.org/\" }, \"type\": \"ex:paint\","
+                + " \"properties\": { \"color\": \"red\" } }", 1000000000000L);
+        write("child", "{ \"parents\": [\"parent\"], \"name\": \"child\" }", 1000000000000L);
+        Map<String,Object> first = serializer.mapFromJsonFile(tmp, "child");
+        assertTrue(first.get("type").equals("http://example.org/paint"));
+        ((Map<String,Object>)first.get("properties")).put("color", "changed");
+        Map<String,Object> cached = (Map<String,Object>)serializer.mapFromJsonFile(tmp, "child").get("properties");
+        assertTrue(cached.get("color").equals("red"));  // cached map not modified by use
+
+        write("parent", "{ \"type\": \"paint\", \"properties\": { \"color\": \"blue\" } }", 1000000002000L);
+        Map<String,Object> changed = serializer.mapFromJsonFile(tmp, "child");
+        assertTrue(changed.get("type").equals("paint"));
+        assertTrue(((Map<String,Object>)changed.get("properties")).get("color").equals("blue"));
+    }
+
+    @Test
+    public void test_json_mergedFileReadOnce() throws Exception {
+        String tmp = folder.getRoot().getPath() + File.separator;
+        write("late", "{ \"type\": \"ex:paint\", \"namespaces\": { \"ex\": \"http://example.org/\" } }",
+                1000000000000L);
+        desc = serializer.descriptionFromJsonFile(tmp, "late");  // namespaces not first, so merged from the map
+        assertTrue(desc.type().equals("http://example.org/paint"));
+
+        write("late", "{ \"type\": \"unread\" }", 1000000000000L);  // same time, so not read again
+        desc = serializer.descriptionFromJsonFile(tmp, "late");
+        assertTrue(desc.type().equals("http://example.org/paint"));
+    }
+
+    @Test
+    public void test_json_inheritanceCycle() throws Exception {
+        try {
+            serializer.descriptionFromJsonFile(dir, "cycleFirst");
+            fail("inheritance cycle not detected");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("cycleFirst -> cycleSecond -> cycleFirst"));
+        }
+    }
+
 }